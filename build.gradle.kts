@@ -5,6 +5,7 @@ plugins {
     java
     application
     id("com.github.johnrengelman.shadow") version "8.1.1"
+    id("me.champeau.jmh") version "0.7.2"
     id("grouph.make-keystores")
 }
 
@@ -15,9 +16,12 @@ repositories {
     mavenCentral()
 }
 
+// 17 by default, build with -PjavaVersion=21 to get a toolchain that can run virtual threads
+val javaVersion = (findProperty("javaVersion") as String?)?.toInt() ?: 17
+
 java {
     toolchain {
-        languageVersion.set(JavaLanguageVersion.of(17))
+        languageVersion.set(JavaLanguageVersion.of(javaVersion))
     }
 }
 
@@ -26,7 +30,7 @@ application {
 }
 
 tasks.withType<JavaCompile>().configureEach {
-    options.release.set(17)
+    options.release.set(javaVersion)
 }
 
 dependencies {
@@ -36,8 +40,39 @@ dependencies {
     implementation("org.bouncycastle:bcpkix-jdk18on:1.78.1")
 }
 
+// benchmarks live in src/jmh/java, ./gradlew jmh
+// results go to build/results/jmh/results-<version>.json, keep those around to compare releases
+// narrow it down with -Pjmh.includes=Protocol
+jmh {
+    jmhVersion.set("1.37")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results-$version.json"))
+    (findProperty("jmh.includes") as String?)?.let { includes.set(listOf(it)) }
+}
+
 tasks.test {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("load")
+    }
+}
+
+// connection scale tests, slow and want a local server keystore so not part of the normal build
+// ./gradlew loadTest -PjavaVersion=21 to include virtual threads
+val loadTest by tasks.registering(Test::class) {
+    description = "Runs load tests comparing client thread modes"
+    group = "verification"
+    testClassesDirs = sourceSets["test"].output.classesDirs
+    classpath = sourceSets["test"].runtimeClasspath
+    useJUnitPlatform {
+        includeTags("load")
+    }
+    maxHeapSize = "2g"
+    System.getProperties()
+        .filterKeys { (it as String).startsWith("grouph.load.") }
+        .forEach { (k, v) -> systemProperty(k as String, v) }
+    testLogging {
+        showStandardStreams = true
+    }
 }
 
  // - O.
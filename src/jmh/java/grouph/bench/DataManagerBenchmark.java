@@ -0,0 +1,75 @@
+package grouph.bench;
+
+import grouph.core.DataManager;
+import grouph.core.Room;
+import grouph.core.RoomRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// chat log persistence, encrypt + append one message and read back a whole room's history
+//  - saveMessage: a fresh DataManager's save, opens and closes the segment every time
+//  - saveMessageKeptOpen: the server's path through RoomRegistry.logs, segment stays open
+// logs go under a temp user.home so a run doesnt touch the real ones
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataManagerBenchmark {
+    @Param({"1000"})
+    public int logMessages;
+
+    @Param({"64"})
+    public int messageBytes;
+
+    private Path home;
+    private String oldHome;
+    private DataManager writer;
+    private DataManager openWriter;
+    private DataManager reader;
+    private String message;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        oldHome = System.getProperty("user.home");
+        home = Files.createTempDirectory("grouph-bench");
+        System.setProperty("user.home", home.toString());
+
+        message = "x".repeat(messageBytes);
+        writer = new DataManager(new Room(UUID.randomUUID(), "000001"));
+        reader = new DataManager(new Room(UUID.randomUUID(), "000002"));
+        openWriter = new RoomRegistry().acquireLogs(new Room(UUID.randomUUID(), "000003"));
+        for (int i = 0; i < logMessages; i++) reader.saveMessage(message);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        System.setProperty("user.home", oldHome);
+        try (Stream<Path> files = Files.walk(home)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void saveMessage() {
+        writer.saveMessage(message);
+    }
+
+    @Benchmark
+    public void saveMessageKeptOpen() {
+        openWriter.saveMessage("alice", message);
+    }
+
+    @Benchmark
+    public String getLogs() throws IOException {
+        return reader.getLogs();
+    }
+}
@@ -0,0 +1,170 @@
+package grouph.bench;
+
+import grouph.core.Connection;
+import grouph.core.Room;
+import grouph.core.ServerBus;
+import grouph.core.UserSession;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import proto.Frame;
+import proto.FramePool;
+import proto.Packet;
+import proto.Packets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// one chat message fanned out to a room of N members
+// the members are in memory connections that copy each frame into their own "tls" buffer,
+// which is what an SSLEngine/SSLSocket does with the bytes we hand it
+//  - perRecipientEncode: the Packets.write path, serialise the packet again for every member
+//  - encodeOnceCopyPerMember: the old Room.broadcast, toBytes once then a byte[] per member write
+//  - sharedFrame: ServerBus with heap frames, one Frame retained by every member
+//  - sharedPooledFrame: ServerBus with a FramePool, one direct pooled Frame
+//  - roomBroadcast: Room.broadcast(Packet) as the dispatcher calls it
+//  - memberArray / memberKeySet: just handing one shared frame to everyone, walking Room's member array
+//    vs the ConcurrentHashMap key set it used to keep
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int members;
+
+    @Param({"64"})
+    public int messageBytes;
+
+    private Room room;
+    private SinkConnection[] sinks;
+    private ServerBus heapBus;
+    private ServerBus pooledBus;
+    private String message;
+    private Set<UserSession> keySet;
+    private Frame frame;
+
+    @Setup
+    public void setup() {
+        room = new Room(UUID.randomUUID(), "000000");
+        sinks = new SinkConnection[members];
+        keySet = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < members; i++) {
+            sinks[i] = new SinkConnection();
+            UserSession u = new UserSession(sinks[i]);
+            room.add(u);
+            keySet.add(u);
+        }
+        heapBus = new ServerBus();
+        pooledBus = new ServerBus(new FramePool(1024));
+        message = "x".repeat(messageBytes);
+        frame = Frame.of(Packets.chatBroadcast("alice", message));
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+    }
+
+    @Benchmark
+    public void perRecipientEncode(Blackhole bh) throws IOException {
+        Packet p = Packets.chatBroadcast("alice", message);
+        for (SinkConnection s : sinks) {
+            ByteArrayOutputStream out = s.stream;
+            out.reset();
+            Packets.write(out, p);
+        }
+        bh.consume(sinks[0].stream.size());
+    }
+
+    @Benchmark
+    public void encodeOnceCopyPerMember(Blackhole bh) {
+        byte[] bytes = Packets.chatBroadcast("alice", message).toBytes();
+        for (SinkConnection s : sinks) {
+            byte[] copy = bytes.clone(); // the old per socket write copied into a fresh record
+            s.tls.clear();
+            s.tls.put(copy);
+        }
+        bh.consume(sinks[0].tls.position());
+    }
+
+    @Benchmark
+    public void roomBroadcast(Blackhole bh) {
+        room.broadcast(Packets.chatBroadcast("alice", message));
+        bh.consume(sinks[0].tls.position());
+    }
+
+    @Benchmark
+    public void memberArray(Blackhole bh) {
+        room.broadcast(frame);
+        bh.consume(sinks[0].tls.position());
+    }
+
+    @Benchmark
+    public void memberKeySet(Blackhole bh) {
+        for (UserSession u : keySet) {
+            try {
+                u.conn.send(frame);
+            } catch (Exception ignored) { }
+        }
+        bh.consume(sinks[0].tls.position());
+    }
+
+    @Benchmark
+    public void sharedFrame(Blackhole bh) {
+        heapBus.chat(room, "alice", message);
+        bh.consume(sinks[0].tls.position());
+    }
+
+    @Benchmark
+    public void sharedPooledFrame(Blackhole bh) {
+        pooledBus.chat(room, "alice", message);
+        bh.consume(sinks[0].tls.position());
+    }
+
+    // stands in for a client, "writes" the frame straight away and lets go of it
+    static final class SinkConnection implements Connection {
+        final ByteBuffer tls = ByteBuffer.allocateDirect(4096); // 10k members of these
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream(1024);
+
+        @Override
+        public void send(Frame frame) {
+            frame.retain();
+            try {
+                tls.clear();
+                tls.put(frame.buffer());
+            } finally {
+                frame.release();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void flushAndClose() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public int queuedFrames() {
+            return 0;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return "bench";
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package grouph.bench;
+
+import grouph.core.DataManager;
+import grouph.core.Room;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// reading back a whole room's history (getLogs) from a logMB sized log, segments memory mapped (logs.mmap)
+// or read onto the heap like before, decrypted across every core or all on the calling thread
+// mb is the log's size per getLogs, so its rate in the results is the read throughput in MB/s
+// (decrypting is part of it, same as what a client waits on)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class LogReadBenchmark {
+    @Param({"100"})
+    public int logMB;
+
+    @Param({"1024"})
+    public int messageBytes;
+
+    @Param({"true", "false"})
+    public boolean mmap;
+
+    @Param({"true", "false"})
+    public boolean parallel;
+
+    private Path home;
+    private String oldHome;
+    private DataManager reader;
+    private double sizeMB;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public double mb;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        oldHome = System.getProperty("user.home");
+        home = Files.createTempDirectory("grouph-bench");
+        System.setProperty("user.home", home.toString());
+        DataManager.mapSegments(mmap);
+        DataManager.parallelDecrypt(Runtime.getRuntime().availableProcessors(), parallel ? 512 : Integer.MAX_VALUE);
+
+        String message = "x".repeat(messageBytes);
+        reader = new DataManager(new Room(UUID.randomUUID(), "000001"));
+        long target = (long) logMB * 1024 * 1024;
+        while (logBytes() < target) {
+            for (int i = 0; i < 1000; i++) reader.saveMessage("alice", message);
+        }
+        sizeMB = logBytes() / (1024.0 * 1024.0);
+    }
+
+    private long logBytes() throws IOException {
+        Path dir = reader.getLogDir().toPath();
+        if (!Files.isDirectory(dir)) return 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        DataManager.mapSegments(true);
+        DataManager.parallelDecrypt(Runtime.getRuntime().availableProcessors(), 512);
+        System.setProperty("user.home", oldHome);
+        try (Stream<Path> files = Files.walk(home)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public String getLogs(Throughput t) throws IOException {
+        String logs = reader.getLogs();
+        t.mb += sizeMB;
+        return logs;
+    }
+}
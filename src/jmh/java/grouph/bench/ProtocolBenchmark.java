@@ -0,0 +1,77 @@
+package grouph.bench;
+
+import org.openjdk.jmh.annotations.*;
+import proto.Packet;
+import proto.PacketView;
+import proto.Packets;
+import proto.T;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// the per message protocol work, one CHAT_SEND in and one CHAT_BROADCAST out
+//  - toBytes: encoding a broadcast
+//  - read: Packet.read off a stream, what the client and old handler do
+//  - decodeView: the server side flyweight decode of the same bytes
+//  - validateContentLen / validateContentLenView: the CHAT_SEND sanity check on a Packet vs a PacketView
+//  - getStr: looking up the message tlv on an already decoded packet
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    @Param({"64", "4096"})
+    public int messageBytes;
+
+    private Packet broadcast;
+    private byte[] chatBytes;
+    private Packet chat;
+    private ByteBuffer chatBuf;
+    private PacketView view;
+
+    @Setup
+    public void setup() throws IOException {
+        String message = "x".repeat(messageBytes);
+        broadcast = Packets.chatBroadcast("alice", message);
+        chatBytes = Packets.chatSend(message).toBytes();
+        chat = Packet.read(new ByteArrayInputStream(chatBytes));
+        chatBuf = ByteBuffer.wrap(chatBytes);
+        view = new PacketView();
+        view.decode(chatBuf.duplicate());
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return broadcast.toBytes();
+    }
+
+    @Benchmark
+    public Packet read() throws IOException {
+        return Packet.read(new ByteArrayInputStream(chatBytes));
+    }
+
+    @Benchmark
+    public boolean decodeView() throws IOException {
+        chatBuf.clear();
+        return view.decode(chatBuf);
+    }
+
+    @Benchmark
+    public boolean validateContentLen() {
+        return Packets.validateContentLen(chat);
+    }
+
+    @Benchmark
+    public boolean validateContentLenView() {
+        return Packets.validateContentLen(view);
+    }
+
+    @Benchmark
+    public String getStr() {
+        return chat.getStr(T.MESSAGE);
+    }
+}
@@ -0,0 +1,609 @@
+package grouph.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+// one rooms chat history on disk, a directory of append only segment files
+//   <data dir>/grouph/<roomId>/00000000.seg, 00000001.seg, ...
+// a segment is just records back to back, each one length prefixed:
+//   int length (bytes after this int), long timestampMs, byte flags, byte nonceLen, short senderLen,
+//   nonce, sender (utf8), ciphertext + gcm tag (whatever is left)
+// once a segment would go past segmentBytes the next record starts a new one
+// each segment has a sparse .idx next to it (see LogIndex) so paging and time lookups dont scan from the start
+// this only stores bytes, DataManager does the encrypting
+// a kept open log holds a FileChannel on its current segment so an append is one write(),
+// a closed one (evicted from RoomLogs, room gone, or never cached) still works but opens and closes per append
+final class ChatLog {
+    static final long DEFAULT_SEGMENT_BYTES = 8L * 1024 * 1024;
+    // offsets in a segment are ints (cursors, index entries, whole segment reads) and one record can run a
+    // segment past segmentBytes, so keep well clear of 2GB
+    static final long MAX_SEGMENT_BYTES = 1L << 30;
+    // sender + timestamp were fed to gcm as aad, so they cant be swapped around on disk
+    static final int FLAG_AAD = 1;
+    // paging cursors, see readBefore
+    static final long END = -1;  // start from the newest record
+    static final long NONE = -2; // nothing older left
+
+    static final int FIXED = 8 + 1 + 1 + 2;
+    private static final String SUFFIX = ".seg";
+    // reads at least this big get mapped instead of copied in, below it setting up a mapping costs more than it saves
+    private static final int MAP_MIN_BYTES = 64 * 1024;
+    // retention copies a rewritten segment this much at a time, each chunk is charged to its io budget
+    private static final int COPY_CHUNK = 64 * 1024;
+    // logs.mmap default, off on windows: a mapping stays until its buffer is collected and windows wont delete
+    // a file thats still mapped, so retention dropping a segment someone just read would fail
+    static final boolean MMAP_DEFAULT = !System.getProperty("os.name").toLowerCase().contains("win");
+    // logs.mmap, DataManager.mapSegments sets it
+    static volatile boolean mmap = MMAP_DEFAULT;
+
+    // one decoded record
+    static final class Entry {
+        final long timestampMs;
+        final int flags;
+        final String sender; // null if we dont know (eg imported from the old text logs)
+        final byte[] nonce;
+        final byte[] ciphertext;
+
+        Entry(long timestampMs, int flags, String sender, byte[] nonce, byte[] ciphertext) {
+            this.timestampMs = timestampMs;
+            this.flags = flags;
+            this.sender = sender;
+            this.nonce = nonce;
+            this.ciphertext = ciphertext;
+        }
+    }
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final int indexEvery;
+    // ReentrantLock so a virtual thread writing here doesnt pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel channel; // current segment, null until the first append
+    private FileChannel indexChannel; // its .idx
+    private Path current;
+    private long size;
+    private int records; // in the current segment, every indexEvery-th gets an index entry
+    private boolean closed;
+    private boolean unsynced; // written since the last fsync
+
+    ChatLog(Path dir, long segmentBytes, boolean keepOpen) {
+        this(dir, segmentBytes, LogIndex.DEFAULT_EVERY, keepOpen);
+    }
+
+    ChatLog(Path dir, long segmentBytes, int indexEvery, boolean keepOpen) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexEvery = indexEvery;
+        this.closed = !keepOpen;
+    }
+
+    Path dir() {
+        return dir;
+    }
+
+    void append(Entry e) throws IOException {
+        appendAll(List.of(e), false);
+    }
+
+    void appendAll(List<Entry> entries) throws IOException {
+        appendAll(entries, false);
+    }
+
+    // each segment's share goes out in a single write() on an O_APPEND channel,
+    // so even two ChatLogs on the same room (one cached, one not) cant interleave half records
+    // sync fsyncs before returning, otherwise its up to sync()/close() or the os
+    void appendAll(List<Entry> entries, boolean sync) throws IOException {
+        if (entries.isEmpty()) return;
+        lock.lock();
+        try {
+            open();
+            ByteBuffer batch = ByteBuffer.allocate(0);
+            ByteBuffer idx = ByteBuffer.allocate(0);
+            for (Entry e : entries) {
+                ByteBuffer rec = encode(e);
+                if (size > 0 && size + rec.remaining() > segmentBytes) {
+                    write(batch.flip());
+                    writeIndex(idx.flip());
+                    roll();
+                    batch = ByteBuffer.allocate(0);
+                    idx = ByteBuffer.allocate(0);
+                }
+                if (records++ % indexEvery == 0) {
+                    idx = append(idx, LogIndex.entry(ByteBuffer.allocate(LogIndex.ENTRY), records - 1, e.timestampMs, (int) size).flip());
+                }
+                batch = append(batch, rec);
+                size += rec.limit();
+            }
+            write(batch.flip());
+            writeIndex(idx.flip());
+            if (sync) {
+                channel.force(false);
+                unsynced = false;
+            } else {
+                unsynced = true;
+            }
+        } finally {
+            if (closed) closeChannel();
+            lock.unlock();
+        }
+    }
+
+    // fsync whatever has been written since last time
+    void sync() throws IOException {
+        lock.lock();
+        try {
+            if (channel != null && unsynced) channel.force(false);
+            unsynced = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // done with this log, any later append opens and closes the file itself
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (channel != null && unsynced) channel.force(false);
+            unsynced = false;
+        } catch (IOException e) {
+            System.err.println("failed to sync chat log " + current + ": " + e.getMessage());
+        } finally {
+            closeChannel();
+            lock.unlock();
+        }
+    }
+
+    // only the first append (or one after close) has to look at the directory
+    private void open() throws IOException {
+        if (channel != null) return;
+        Files.createDirectories(dir);
+        List<Path> segs = segments();
+        if (segs.isEmpty()) {
+            start(segment(0));
+            return;
+        }
+        current = segs.get(segs.size() - 1);
+        LogIndex idx = LogIndex.load(current, indexEvery);
+        channel = openAppend(current);
+        // a record cut short by a crash would hide everything appended after it, so drop it first
+        if (channel.size() > idx.validEnd()) channel.truncate(idx.validEnd());
+        if (idx.stale()) idx.write(current);
+        indexChannel = openAppend(LogIndex.pathFor(current));
+        size = channel.size();
+        records = idx.records();
+    }
+
+    private void roll() throws IOException {
+        // once we move on nobody would sync the old segment, so do it now (its once per segmentBytes)
+        channel.force(false);
+        closeChannel();
+        start(segment(index(current) + 1));
+    }
+
+    private void start(Path seg) throws IOException {
+        current = seg;
+        // an index left behind without its segment would describe somebody elses records
+        Files.deleteIfExists(LogIndex.pathFor(seg));
+        channel = openAppend(seg);
+        indexChannel = openAppend(LogIndex.pathFor(seg));
+        size = channel.size();
+        records = 0;
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) channel.write(buf);
+    }
+
+    // the records are already down, an index that falls behind just gets caught up by the next load
+    private void writeIndex(ByteBuffer buf) {
+        try {
+            while (buf.hasRemaining()) indexChannel.write(buf);
+        } catch (IOException e) {
+            System.err.println("failed to write chat log index " + current + ": " + e.getMessage());
+        }
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            channel.close();
+            indexChannel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+        indexChannel = null;
+    }
+
+    // every record in every segment, oldest first
+    // a record cut short at the end of a segment (crashed mid write) is skipped
+    List<Entry> readAll() throws IOException {
+        List<Entry> out = new ArrayList<>();
+        for (Path seg : segments()) {
+            ByteBuffer buf = readRange(seg, 0, Long.MAX_VALUE);
+            Entry e;
+            while ((e = decode(buf)) != null) out.add(e);
+        }
+        return out;
+    }
+
+    // up to limit records from just before cursor, newest first
+    // a cursor is (segment number << 32) | byte offset in that segment, END means start from the newest record
+    // records only chain forwards, so each segment's index says where to start scanning to get limit of them,
+    // only the segments the page covers get read and only the records we return get decoded
+    Slice readBefore(long cursor, int limit) throws IOException {
+        List<Path> segs = segments();
+        List<Entry> out = new ArrayList<>(Math.min(limit, 1024));
+        int i = segs.size() - 1;
+        long stopAt = Long.MAX_VALUE;
+        if (cursor != END) {
+            int seg = (int) (cursor >>> 32);
+            while (i >= 0 && index(segs.get(i)) > seg) i--;
+            if (i >= 0 && index(segs.get(i)) == seg) stopAt = cursor & 0xFFFF_FFFFL;
+        }
+        for (; i >= 0 && limit > 0; i--, stopAt = Long.MAX_VALUE) {
+            Path seg = segs.get(i);
+            LogIndex idx = loadIndex(segs, i);
+            long end = Math.min(stopAt, idx.validEnd());
+            int from = idx.startFor(end, limit);
+            ByteBuffer buf = readRange(seg, from, end);
+            int[] starts = recordStarts(buf);
+            if (from > 0 && (!linesUp(buf, idx, from) || starts.length < limit || !reaches(buf, starts))) {
+                // index doesnt line up with the data (or the cursor is off a record boundary), scan it all
+                from = 0;
+                buf = readRange(seg, 0, end);
+                starts = recordStarts(buf);
+            }
+            int first = Math.max(0, starts.length - limit);
+            for (int r = starts.length - 1; r >= first; r--) {
+                buf.position(starts[r]);
+                Entry e = decode(buf);
+                if (e != null) out.add(e);
+            }
+            limit -= starts.length - first;
+            if (limit == 0) {
+                // more before this page if we didnt start at the very first record we have
+                long offset = starts.length == 0 ? from : from + starts[first];
+                boolean older = offset > 0 || i > 0;
+                return new Slice(out, older ? cursor(seg, offset) : NONE);
+            }
+        }
+        return new Slice(out, NONE);
+    }
+
+    // cursor of the first record at or after timestampMs, so readBefore from it gives what came before that time
+    // END if everything is older, the very start if nothing is
+    // a binary search over the segments by their first timestamp, then over that segment's index,
+    // then a scan of at most indexEvery records
+    long seek(long timestampMs) throws IOException {
+        List<Path> segs = segments();
+        if (segs.isEmpty()) return END;
+        int lo = 0, hi = segs.size() - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            LogIndex idx = loadIndex(segs, mid);
+            if (!idx.isEmpty() && idx.firstTimestamp() < timestampMs) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (found < 0) return cursor(segs.get(0), 0);
+        Path seg = segs.get(found);
+        LogIndex idx = loadIndex(segs, found);
+        int from = idx.startForTime(timestampMs);
+        ByteBuffer buf = readRange(seg, from, idx.validEnd());
+        if (!linesUp(buf, idx, from)) {
+            from = 0;
+            buf = readRange(seg, 0, idx.validEnd());
+        }
+        for (int start : recordStarts(buf)) {
+            if (buf.getLong(start + 4) >= timestampMs) return cursor(seg, from + start);
+        }
+        // all older, so it starts with the next segment
+        return found + 1 < segs.size() ? cursor(segs.get(found + 1), 0) : END;
+    }
+
+    // a sealed segment that had no index (or a damaged one) gets it written back so the next read doesnt rebuild it,
+    // the one being appended to is left to the writer
+    private LogIndex loadIndex(List<Path> segs, int i) throws IOException {
+        Path seg = segs.get(i);
+        LogIndex idx = LogIndex.load(seg, indexEvery);
+        if (idx.stale() && i < segs.size() - 1) {
+            try {
+                idx.write(seg);
+            } catch (IOException e) {
+                System.err.println("failed to write chat log index for " + seg + ": " + e.getMessage());
+            }
+        }
+        return idx;
+    }
+
+    // buf was read from an index entry's offset, check the record there has the timestamp the entry says
+    private static boolean linesUp(ByteBuffer buf, LogIndex idx, int from) {
+        return from == 0 || (buf.limit() >= 4 + FIXED && buf.getLong(4) == idx.timestampAt(from));
+    }
+
+    // the last record found ends exactly where the buffer does
+    private static boolean reaches(ByteBuffer buf, int[] starts) {
+        if (starts.length == 0) return buf.limit() == 0;
+        int last = starts[starts.length - 1];
+        return last + 4 + buf.getInt(last) == buf.limit();
+    }
+
+    private static long cursor(Path seg, long offset) {
+        return ((long) index(seg) << 32) | offset;
+    }
+
+    // retention, see LogRetention
+    // none of these touch the last segment, thats the one a writer may have open and be appending to,
+    // so nothing they delete or rewrite can be under anybody's open handle
+
+    // cursor of the count-th newest record, keeping from there keeps the newest count
+    // the very start if there arent that many
+    long cursorFromEnd(long count) throws IOException {
+        List<Path> segs = segments();
+        if (segs.isEmpty()) return END;
+        for (int i = segs.size() - 1; i >= 0; i--) {
+            Path seg = segs.get(i);
+            LogIndex idx = loadIndex(segs, i);
+            if (count <= idx.records()) {
+                int ordinal = (int) (idx.records() - count);
+                // scan on from the nearest entry
+                int[] entry = idx.floorOrdinal(ordinal);
+                ByteBuffer buf = readRange(seg, entry[1], idx.validEnd());
+                int[] starts = recordStarts(buf);
+                if (!linesUp(buf, idx, entry[1]) || ordinal - entry[0] >= starts.length) {
+                    entry = new int[] {0, 0};
+                    buf = readRange(seg, 0, idx.validEnd());
+                    starts = recordStarts(buf);
+                }
+                return cursor(seg, entry[1] + starts[ordinal - entry[0]]);
+            }
+            count -= idx.records();
+        }
+        return cursor(segs.get(0), 0);
+    }
+
+    // get rid of every record before cursor (everything for END): segments wholly before it are deleted,
+    // the one it lands in is rewritten from there on, copying through io so the caller can pace it
+    // returns the bytes freed
+    long dropBefore(long cursor, LongConsumer io) throws IOException {
+        List<Path> segs = segments();
+        int keepSeg = cursor == END ? Integer.MAX_VALUE : (int) (cursor >>> 32);
+        long keepOffset = cursor == END ? 0 : cursor & 0xFFFF_FFFFL;
+        long freed = 0;
+        for (int i = 0; i < segs.size() - 1; i++) {
+            Path seg = segs.get(i);
+            if (index(seg) < keepSeg) {
+                freed += delete(seg);
+            } else {
+                if (index(seg) == keepSeg && keepOffset > 0) freed += rewriteFrom(seg, keepOffset, io);
+                break;
+            }
+        }
+        return freed;
+    }
+
+    // oldest segments go until the log fits in maxBytes (or only the current one is left)
+    long dropOldestOver(long maxBytes) throws IOException {
+        List<Path> segs = segments();
+        long total = 0;
+        for (Path seg : segs) total += Files.size(seg);
+        long freed = 0;
+        for (int i = 0; i < segs.size() - 1 && total - freed > maxBytes; i++) freed += delete(segs.get(i));
+        return freed;
+    }
+
+    // newest change to any file of the log, 0 if there are none
+    long lastModifiedMs() throws IOException {
+        long newest = 0;
+        for (Path seg : segments()) newest = Math.max(newest, Files.getLastModifiedTime(seg).toMillis());
+        return newest;
+    }
+
+    private static long delete(Path seg) throws IOException {
+        long size = Files.size(seg);
+        Files.delete(seg);
+        Files.deleteIfExists(LogIndex.pathFor(seg));
+        return size;
+    }
+
+    // seg without its first offset bytes, written to a temp file and moved over it so readers see one or the other
+    // the record numbering inside changes so its index is rebuilt straight away
+    private long rewriteFrom(Path seg, long offset, LongConsumer io) throws IOException {
+        Path tmp = seg.resolveSibling(seg.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(seg, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            long end = in.size();
+            for (long pos = offset; pos < end; ) {
+                long n = in.transferTo(pos, Math.min(COPY_CHUNK, end - pos), out);
+                if (n <= 0) break;
+                pos += n;
+                io.accept(n);
+            }
+        }
+        Files.move(tmp, seg, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(LogIndex.pathFor(seg));
+        LogIndex.load(seg, indexEvery).write(seg);
+        return offset;
+    }
+
+    // swap records for same sized replacements where they are (DataManager re-encrypting under another key)
+    // fix hands back null to leave a record alone, nothing moves so offsets, indexes and cursors all stay good
+    // a replacement that isnt the same size is left out and not counted, returns how many were written
+    int rewriteInPlace(UnaryOperator<Entry> fix) throws IOException {
+        int rewritten = 0;
+        lock.lock();
+        try {
+            for (Path seg : segments()) {
+                ByteBuffer buf = readRange(seg, 0, Long.MAX_VALUE);
+                FileChannel out = null;
+                try {
+                    for (int start : recordStarts(buf)) {
+                        buf.position(start);
+                        Entry e = decode(buf);
+                        Entry replacement = e == null ? null : fix.apply(e);
+                        if (replacement == null) continue;
+                        ByteBuffer rec = encode(replacement);
+                        if (rec.remaining() != 4 + buf.getInt(start)) continue;
+                        if (out == null) out = FileChannel.open(seg, StandardOpenOption.WRITE);
+                        for (long pos = start; rec.hasRemaining(); ) pos += out.write(rec, pos);
+                        rewritten++;
+                    }
+                    if (out != null) out.force(false);
+                } finally {
+                    if (out != null) out.close();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return rewritten;
+    }
+
+    // a page of records, newest first, and the cursor for the page before it
+    static final class Slice {
+        final List<Entry> entries;
+        final long next;
+
+        Slice(List<Entry> entries, long next) {
+            this.entries = entries;
+            this.next = next;
+        }
+    }
+
+    // the segment's bytes from..to (or its end), buffer offsets are relative to from
+    // big reads (whole segments for getLogs, index rebuilds) are mapped so records decode straight out of the
+    // page cache without copying the file onto the heap first, a mapping goes away when the buffer is collected
+    // if mapping fails (out of address space, a filesystem that cant) it falls back to reading into the heap
+    static ByteBuffer readRange(Path seg, long from, long to) throws IOException {
+        try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.READ)) {
+            int n = (int) Math.max(0, Math.min(ch.size(), to) - from);
+            if (mmap && n >= MAP_MIN_BYTES) {
+                try {
+                    return ch.map(FileChannel.MapMode.READ_ONLY, from, n);
+                } catch (IOException | UnsupportedOperationException e) {
+                    // read it instead
+                }
+            }
+            ByteBuffer buf = ByteBuffer.allocate(n);
+            while (buf.hasRemaining() && ch.read(buf, from + buf.position()) >= 0) { }
+            return buf.flip();
+        }
+    }
+
+    // offset of every whole record in buf, only reads the length prefixes
+    private static int[] recordStarts(ByteBuffer buf) {
+        int[] starts = new int[64];
+        int n = 0;
+        int pos = 0;
+        int end = buf.limit();
+        while (end - pos >= 4) {
+            int len = buf.getInt(pos);
+            if (len < FIXED || len > end - pos - 4) break;
+            if (n == starts.length) starts = Arrays.copyOf(starts, n * 2);
+            starts[n++] = pos;
+            pos += 4 + len;
+        }
+        return Arrays.copyOf(starts, n);
+    }
+
+    // segment files in order, empty if the room has never logged anything
+    List<Path> segments() throws IOException {
+        if (!Files.isDirectory(dir)) return List.of();
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+    }
+
+    static ByteBuffer encode(Entry e) {
+        byte[] sender = e.sender == null ? new byte[0] : e.sender.getBytes(StandardCharsets.UTF_8);
+        if (sender.length > 0xFFFF) throw new IllegalArgumentException("sender name too long");
+        int len = FIXED + e.nonce.length + sender.length + e.ciphertext.length;
+        ByteBuffer b = ByteBuffer.allocate(4 + len);
+        b.putInt(len)
+            .putLong(e.timestampMs)
+            .put((byte) e.flags)
+            .put((byte) e.nonce.length)
+            .putShort((short) sender.length)
+            .put(e.nonce)
+            .put(sender)
+            .put(e.ciphertext);
+        return b.flip();
+    }
+
+    // next record from buf or null if there isnt a whole one left
+    static Entry decode(ByteBuffer buf) {
+        if (buf.remaining() < 4) return null;
+        int start = buf.position();
+        int len = buf.getInt();
+        if (len < FIXED || len > buf.remaining()) {
+            buf.position(start);
+            return null;
+        }
+        int end = buf.position() + len;
+        long ts = buf.getLong();
+        int flags = buf.get() & 0xFF;
+        int nonceLen = buf.get() & 0xFF;
+        int senderLen = buf.getShort() & 0xFFFF;
+        if (FIXED + nonceLen + senderLen > len) {
+            // garbage, nothing after this can be trusted either
+            buf.position(start);
+            return null;
+        }
+        byte[] nonce = new byte[nonceLen];
+        buf.get(nonce);
+        String sender = null;
+        if (senderLen > 0 && buf.hasArray()) {
+            sender = new String(buf.array(), buf.arrayOffset() + buf.position(), senderLen, StandardCharsets.UTF_8);
+            buf.position(buf.position() + senderLen);
+        } else if (senderLen > 0) {
+            // mapped segment
+            byte[] b = new byte[senderLen];
+            buf.get(b);
+            sender = new String(b, StandardCharsets.UTF_8);
+        }
+        byte[] ct = new byte[end - buf.position()];
+        buf.get(ct);
+        return new Entry(ts, flags, sender, nonce, ct);
+    }
+
+    private Path segment(int index) {
+        return dir.resolve(String.format("%08d%s", index, SUFFIX));
+    }
+
+    private static int index(Path seg) {
+        String name = seg.getFileName().toString();
+        return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static ByteBuffer append(ByteBuffer batch, ByteBuffer rec) {
+        if (batch.remaining() < rec.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(batch.capacity() * 2, batch.position() + rec.remaining()));
+            batch.flip();
+            bigger.put(batch);
+            batch = bigger;
+        }
+        return batch.put(rec);
+    }
+
+    private static FileChannel openAppend(Path seg) throws IOException {
+        return FileChannel.open(seg, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,33 @@
+package grouph.core;
+
+import proto.Frame;
+
+import java.io.IOException;
+
+// the bit of a client the rest of the server is allowed to touch
+// could be a blocking SSLSocket or an SSLEngine on an nio channel, rooms and handlers dont care
+public interface Connection {
+    // send one already encoded frame to the client
+    // the connection retains the frame if it needs it after returning, the caller still releases its own reference
+    void send(Frame frame) throws IOException;
+
+    // drop the client, safe to call more than once
+    void close();
+
+    // stop taking input, write out whatever is already queued, then close
+    void flushAndClose();
+
+    boolean isOpen();
+
+    // frames queued but not written yet, how far behind this client is
+    int queuedFrames();
+
+    // for logging
+    String remoteAddress();
+
+    // whether this client's packets are handled on a shared event loop, where anything slow
+    // (disk, waiting on a queue) holds up every other connection on it and has to go elsewhere
+    default boolean onEventLoop() {
+        return false;
+    }
+}
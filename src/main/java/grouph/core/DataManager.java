@@ -1,12 +1,23 @@
 package grouph.core;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
@@ -18,8 +29,9 @@ import java.util.UUID;
 
 /**
  * This class is responsible for the saving and retrieval of chat messages for each individual room
- * On room creation a .txt file is created in the users OS Data cache with the associated room id
- * All messages recieved by the server from clients are encrypted via AES-GCM encryption before being stored in the .txt file
+ * Each room gets a directory named after its room id in the users OS Data cache, holding binary log segments (see ChatLog)
+ * All messages recieved by the server from clients are encrypted via AES-GCM encryption before being stored
+ * Rooms from before the binary format have a <roomId>.txt of Base64 lines, those get imported into segments the first time they're touched
  */
 
 public class DataManager {
@@ -34,17 +46,90 @@ public class DataManager {
 
     //RNG for nonce creation
     private static final SecureRandom RNG = new SecureRandom();
-    //AES key is stored in memory for the lifespan of the JVM
-    private static volatile SecretKey aesKey;
+    //AES keys are derived per room from its id, the last KEY_CACHE_SIZE rooms' keys stay in memory
+    //so a busy room doesn't hash on every message (LRU so rooms that come and go don't pile up)
+    private static final int KEY_CACHE_SIZE = 1024;
+    private static final Map<UUID, SecretKey> KEYS = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, SecretKey> eldest) {
+            return size() > KEY_CACHE_SIZE;
+        }
+    };
+    //Cipher.getInstance is a provider lookup + allocation, so each thread keeps one and re-inits it per message
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM not available", e);
+        }
+    });
+    //history bigger than parallelThreshold records gets decrypted in chunks across this pool instead of
+    //on the calling thread, every record has its own nonce so chunks dont depend on each other
+    //bounded so a few big history loads cant take every core away from the chat path
+    //the default is well under a GET_LOGS page (PacketDispatcher.MAX_PAGE) so full pages are what use it
+    static final int DEFAULT_PARALLEL_THRESHOLD = 128;
+    private static final LongAdder PARALLEL = Metrics.counter("logs.parallelDecrypts");
+    private static volatile ForkJoinPool decrypters = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    //before keys were per room every room in a JVM used the key of whichever room asked for one first,
+    //so records from then can be under another room's key. the first read of a room tries the ids of the other
+    //rooms in the data dir on whatever its own key can't open, re-encrypts what that recovers under its own key
+    //and leaves KEYS_MARKER in its log dir so it's only ever done once
+    private static final String KEYS_MARKER = "keys.v2";
+    //a record none of them open is probably just damaged, after this many of those only keys that worked get tried
+    private static final int MAX_FULL_SCANS = 32;
+    private static final LongAdder KEYS_RECOVERED = Metrics.counter("logs.keysRecovered");
+    private static final LongAdder KEYS_UNRECOVERED = Metrics.counter("logs.keysUnrecovered");
+    //this rooms key once we've looked it up
+    private volatile SecretKey aesKey;
 
     private Room room;
+    private final long segmentBytes;
+    private final int indexEvery;
+    // the server keeps one DataManager per active room in RoomLogs with its segment held open,
+    // a plain new DataManager(room) opens and closes the file on every save like it always did
+    private final boolean keepOpen;
+    private File dataDir;
+    private ChatLog log;
+    private volatile boolean legacyChecked;
+    private volatile boolean keysChecked;
+    //held for a whole key migration, not this, so appends to the room don't wait on it
+    private final Object keysLock = new Object();
 
     public DataManager(Room room) {
+        this(room, ChatLog.DEFAULT_SEGMENT_BYTES);
+    }
+
+    public DataManager(Room room, long segmentBytes) {
+        this(room, segmentBytes, LogIndex.DEFAULT_EVERY, false);
+    }
+
+    DataManager(Room room, long segmentBytes, int indexEvery, boolean keepOpen) {
         this.room = room;
+        this.segmentBytes = segmentBytes;
+        this.indexEvery = indexEvery;
+        this.keepOpen = keepOpen;
     }
 
-    //.txt file is checked to see if it exists in the users cache and if it doesn't a new file is made
+    //legacy .txt log for this room, only read to import it into segments
     public File getDataPath() {
+        return new File(getDataDir(), String.format("%s.txt", room.roomId));
+    }
+
+    //directory holding this rooms log segments
+    public File getLogDir() {
+        return new File(getDataDir(), room.roomId.toString());
+    }
+
+    //grouph dir in the users OS data cache, made if it doesn't exist
+    //worked out once per DataManager, it doesn't move while the server is up
+    private synchronized File getDataDir() {
+        if (dataDir == null) dataDir = findDataDir();
+        return dataDir;
+    }
+
+    //also where LogRetention looks for every rooms logs
+    static File findDataDir() {
         String os = System.getProperty("os.name").toLowerCase();
         String basePath;
 
@@ -60,100 +145,136 @@ public class DataManager {
         File dir = new File(basePath, "grouph");
         if (!dir.exists()) dir.mkdirs();
 
-        return new File(dir, String.format("%s.txt", room.roomId));
-    }
-
-    //loads/inits the generated AES key to en/decrypt chat logs
-    private SecretKey getAesKey() {
-        if (aesKey == null) {
-            synchronized (DataManager.class) {
-                if (aesKey == null) {
-                    try {
-                        // Convert UUID to bytes
-                        UUID id = room.roomId;
-                        ByteBuffer buffer = ByteBuffer.allocate(16);
-                        buffer.putLong(id.getMostSignificantBits());
-                        buffer.putLong(id.getLeastSignificantBits());
-                        byte[] uuidBytes = buffer.array();
-
-                        // Hash the UUID bytes with SHA-256
-                        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                        byte[] hash = digest.digest(uuidBytes);
-
-                        // Use first 16 bytes for AES-128 key
-                        byte[] keyBytes = new byte[16];
-                        System.arraycopy(hash, 0, keyBytes, 0, 16);
-
-                        aesKey = new SecretKeySpec(keyBytes, "AES");
-                    } catch (Exception e) {
-                        throw new IllegalStateException("Failed to generate AES key from roomId", e);
-                    }
+        return dir;
+    }
+
+    private synchronized ChatLog log() {
+        if (log == null) log = new ChatLog(getLogDir().toPath(), segmentBytes, indexEvery, keepOpen);
+        return log;
+    }
+
+    //whether history reads memory map the log segments (logs.mmap), applies to every room
+    public static void mapSegments(boolean on) {
+        ChatLog.mmap = on;
+    }
+
+    //threads for decrypting big histories (logs.decryptThreads) and how many records it takes to use them
+    //(logs.decryptParallelThreshold), applies to every room
+    public static void parallelDecrypt(int threads, int threshold) {
+        ForkJoinPool old = decrypters;
+        decrypters = new ForkJoinPool(threads);
+        parallelThreshold = threshold;
+        old.shutdown();
+    }
+
+    //lets go of the open segment, saving still works after this but opens the file each time
+    void close() {
+        ChatLog l;
+        synchronized (this) {
+            l = log;
+        }
+        if (l != null) l.close();
+    }
+
+    //loads/inits the generated AES key to en/decrypt chat logs (package private so tests can write legacy lines with it)
+    SecretKey getAesKey() {
+        SecretKey key = aesKey;
+        if (key == null) {
+            synchronized (KEYS) {
+                key = KEYS.get(room.roomId);
+                if (key == null) {
+                    key = deriveKey(room.roomId);
+                    KEYS.put(room.roomId, key);
                 }
             }
+            aesKey = key;
+        }
+        return key;
+    }
+
+    private static SecretKey deriveKey(UUID id) {
+        try {
+            // Convert UUID to bytes
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            buffer.putLong(id.getMostSignificantBits());
+            buffer.putLong(id.getLeastSignificantBits());
+            byte[] uuidBytes = buffer.array();
+
+            // Hash the UUID bytes with SHA-256
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(uuidBytes);
+
+            // Use first 16 bytes for AES-128 key
+            return new SecretKeySpec(hash, 0, 16, "AES");
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to generate AES key from roomId", e);
         }
-        return aesKey;
     }
 
     /**
-     * Saves a message when called to the room's chatlog .txt using AES-GCM encryption
-     * File format per line: <Base64(nonce)>:<Base64(ciphertext+tag)>
-     * Each message is stored in cyphertext and given a unique nonce
+     * Saves a message when called to the room's log segments using AES-GCM encryption
+     * Each message is stored in cyphertext and given a unique nonce, see ChatLog for the record layout
      */
     public void saveMessage(String message) {
+        saveMessage(null, message);
+    }
+
+    /**
+     * Same as saveMessage(message) but records who sent it
+     * The sender and timestamp are stored in the clear next to the ciphertext and bound to it as GCM AAD
+     * The server doesn't call this directly anymore, chat goes through LogWriter which batches appendAll
+     */
+    public void saveMessage(String sender, String message) {
         if (room == null) {
             return;
         }
 
         try {
-            File file = getDataPath();
-            //ensure that log dir and file exists
-            if (!file.exists()) {
-                File parent = file.getParentFile();
-                if (!parent.exists() && !parent.mkdirs()) {
-                    System.err.println("Failed to create directories for log file: " + file);
-                    return;
-                }
-                if (!file.createNewFile()) {
-                    System.err.println("Failed to create log file: " + file);
-                    return;
-                }
-            }
-
-            //AES-GCM encryption
-            SecretKey key = getAesKey();
+            appendAll(List.of(encrypt(System.currentTimeMillis(), sender, message)), false);
+        } catch (Exception e) {
+            System.err.println("Failed to save encrypted message: " + e.getMessage());
+        }
+    }
 
-            //generates a random nonce for the message
-            byte[] nonce = new byte[NONCE_BYTES];
-            RNG.nextBytes(nonce);
+    //turns one message into a log record, fresh random nonce each time
+    ChatLog.Entry encrypt(long timestampMs, String sender, String message) throws GeneralSecurityException {
+        //AES-GCM encryption
+        SecretKey key = getAesKey();
 
-            //init AES-GCM cipher in ENCRYPT MODE
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, nonce);
-            cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+        //generates a random nonce for the message
+        byte[] nonce = new byte[NONCE_BYTES];
+        RNG.nextBytes(nonce);
 
-            //encrypts the plaintext
-            byte[] ct = cipher.doFinal(message.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        //init AES-GCM cipher in ENCRYPT MODE
+        Cipher cipher = CIPHER.get();
+        GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, nonce);
+        cipher.init(Cipher.ENCRYPT_MODE, key, spec);
+        cipher.updateAAD(aad(timestampMs, sender));
 
-            //encodes both the message which is nowi n ciphertext and nonce as base64
-            String nonceB64 = Base64.getEncoder().encodeToString(nonce);
-            String ctB64 = Base64.getEncoder().encodeToString(ct);
+        //encrypts the plaintext
+        byte[] ct = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        return new ChatLog.Entry(timestampMs, ChatLog.FLAG_AAD, sender, nonce, ct);
+    }
 
-            String line = nonceB64 + ":" + ctB64 + System.lineSeparator();
+    //appends already encrypted records to the rooms current segment in one write, sync fsyncs before returning
+    void appendAll(List<ChatLog.Entry> entries, boolean sync) throws IOException {
+        ChatLog log = log();
+        importLegacy(log);
+        log.appendAll(entries, sync);
+    }
 
-            //appends the data to the rooms chatlog
-            try (FileWriter fw = new FileWriter(file, true)) {
-                fw.write(line);
-            }
-        } catch (Exception e) {
-            System.err.println("Failed to save encrypted message: " + e.getMessage());
+    //fsync anything appended since the last sync
+    void sync() throws IOException {
+        ChatLog l;
+        synchronized (this) {
+            l = log;
         }
+        if (l != null) l.sync();
     }
 
     /**
-     * Retrieves all messages from a chat rooms chat log file
-     * since all encrypted messages are held to a format, when found they are decrypted and sipt out
-     * If for some reason plaintext is stored in the .txt file it will also spit that out (mostly for testing, can be changed for the
-     * purpose of actual cybersec standards :P)
+     * Retrieves all messages from a chat rooms log segments, oldest first, one per line
+     * Anything still in the legacy .txt format is imported first so it shows up too
      */
     public String getLogs() throws IOException {
         StringBuilder builder = new StringBuilder();
@@ -162,11 +283,13 @@ public class DataManager {
             throw new IOException("Room is null");
         }
 
-        File file = getDataPath();
-        if (!file.exists()) {
+        ChatLog log = log();
+        importLegacy(log);
+        if (log.segments().isEmpty()) {
             //missing logs are an IO error for callers/tests
             throw new IOException("No logs found for room: " + room.roomId);
         }
+        migrateKeys(log);
 
         final SecretKey key;
         try {
@@ -176,15 +299,12 @@ public class DataManager {
             throw new IOException("Cannot decrypt logs: " + e.getMessage(), e);
         }
 
-        try (Scanner scanner = new Scanner(file)) {
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine().trim();
-                if (line.isEmpty()) continue;
-
-                //try to decrypt each line, if failed then fall back to plaintext
-                String decrypted = tryDecryptLine(line, key);
-                builder.append(decrypted).append(System.lineSeparator());
+        try {
+            for (String decrypted : decryptAll(key, log.readAll())) {
+                if (decrypted != null) builder.append(decrypted).append(System.lineSeparator());
             }
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
             // surface any fatal read/decrypt issue as IOException
             throw new IOException("Failed to read/decrypt logs", e);
@@ -193,31 +313,297 @@ public class DataManager {
         return builder.toString();
     }
 
-    private String tryDecryptLine(String line, SecretKey key) {
-        //encryption format: nonceB64:ctB64
-        int idx = line.indexOf(':');
-        if (idx <= 0) {
-            //if no colon (format) is present then decryption won't occur instead it just spits out plaintext
-            return line;
+    //one decrypted message from the history
+    static final class Message {
+        final long timestampMs;
+        final String sender; //null if it was logged without one
+        final String text;
+
+        Message(long timestampMs, String sender, String text) {
+            this.timestampMs = timestampMs;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    //a page of history, newest first, next is the cursor for the page before it (ChatLog.NONE when there isn't one)
+    static final class Page {
+        final List<Message> messages;
+        final long next;
+
+        Page(List<Message> messages, long next) {
+            this.messages = messages;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Reads up to limit messages from just before cursor (ChatLog.END for the newest), newest first
+     * Only the segments the page lands in are read and only the returned records get decrypted,
+     * so a room with months of history costs the same to page through as a new one
+     */
+    Page readPage(long cursor, int limit) throws IOException {
+        ChatLog log = log();
+        importLegacy(log);
+        migrateKeys(log);
+        ChatLog.Slice slice = log.readBefore(cursor, limit);
+
+        String[] texts = decryptAll(getAesKey(), slice.entries);
+        List<Message> messages = new ArrayList<>(slice.entries.size());
+        for (int i = 0; i < texts.length; i++) {
+            ChatLog.Entry e = slice.entries.get(i);
+            if (texts[i] != null) messages.add(new Message(e.timestampMs, e.sender, texts[i]));
+        }
+        return new Page(messages, slice.next);
+    }
+
+    //plaintext of each entry in the same order (null where a record didn't decrypt)
+    //small histories stay on this thread with its cipher, big ones get split across the decrypters pool
+    private String[] decryptAll(SecretKey key, List<ChatLog.Entry> entries) {
+        String[] out = new String[entries.size()];
+        if (out.length < parallelThreshold) {
+            Cipher cipher = CIPHER.get();
+            for (int i = 0; i < out.length; i++) out[i] = decrypt(cipher, key, entries.get(i));
+            return out;
+        }
+        PARALLEL.increment();
+        ForkJoinPool pool = decrypters;
+        //a few chunks per thread so one that lands on a slow core doesn't hold up the rest
+        int chunk = Math.max(64, out.length / (pool.getParallelism() * 4));
+        pool.invoke(new DecryptChunk(key, entries, out, 0, out.length, chunk));
+        return out;
+    }
+
+    //decrypts entries[from, to) into the same slots of out, halving until it's down to one chunk
+    private static final class DecryptChunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SecretKey key;
+        private final List<ChatLog.Entry> entries;
+        private final String[] out;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        DecryptChunk(SecretKey key, List<ChatLog.Entry> entries, String[] out, int from, int to, int chunk) {
+            this.key = key;
+            this.entries = entries;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
         }
 
-        String nonceB64 = line.substring(0, idx);
-        String ctB64 = line.substring(idx + 1);
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                //each pool thread has its own cipher through CIPHER
+                Cipher cipher = CIPHER.get();
+                for (int i = from; i < to; i++) out[i] = decrypt(cipher, key, entries.get(i));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new DecryptChunk(key, entries, out, from, mid, chunk),
+                new DecryptChunk(key, entries, out, mid, to, chunk));
+        }
+    }
+
+    /**
+     * Cursor for readPage that starts just before timestampMs, so a client can jump to a point in the history
+     * Found through the segments' sparse indexes rather than by reading everything up to it
+     */
+    long cursorAt(long timestampMs) throws IOException {
+        ChatLog log = log();
+        importLegacy(log);
+        return log.seek(timestampMs);
+    }
+
+    private static String decrypt(Cipher cipher, SecretKey key, ChatLog.Entry e) {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, e.nonce));
+            if ((e.flags & ChatLog.FLAG_AAD) != 0) cipher.updateAAD(aad(e.timestampMs, e.sender));
+            byte[] pt = cipher.doFinal(e.ciphertext);
+            return new String(pt, StandardCharsets.UTF_8);
+        } catch (Exception ex) {
+            //record is damaged or was written with another key, skip it rather than fail the whole history
+            System.err.println("Failed to decrypt log record, skipping: " + ex.getMessage());
+            return null;
+        }
+    }
 
+    //plaintext of e under key, null if it doesn't authenticate (no logging, trying keys is expected to miss)
+    private static byte[] open(Cipher cipher, SecretKey key, ChatLog.Entry e) {
         try {
-            byte[] nonce = Base64.getDecoder().decode(nonceB64);
-            byte[] ct = Base64.getDecoder().decode(ctB64);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, e.nonce));
+            if ((e.flags & ChatLog.FLAG_AAD) != 0) cipher.updateAAD(aad(e.timestampMs, e.sender));
+            return cipher.doFinal(e.ciphertext);
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
 
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, nonce);
-            cipher.init(Cipher.DECRYPT_MODE, key, spec);
+    //e's plaintext encrypted again under key with a fresh nonce, same flags and size as e
+    private static ChatLog.Entry reseal(Cipher cipher, SecretKey key, ChatLog.Entry e, byte[] plaintext)
+            throws GeneralSecurityException {
+        byte[] nonce = new byte[e.nonce.length];
+        RNG.nextBytes(nonce);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+        if ((e.flags & ChatLog.FLAG_AAD) != 0) cipher.updateAAD(aad(e.timestampMs, e.sender));
+        return new ChatLog.Entry(e.timestampMs, e.flags, e.sender, nonce, cipher.doFinal(plaintext));
+    }
 
-            byte[] pt = cipher.doFinal(ct);
-            return new String(pt, java.nio.charset.StandardCharsets.UTF_8);
+    /**
+     * Moves records written under another room's key (see KEYS_MARKER) over to this room's key
+     * Records keep their size so they're rewritten where they are, cursors handed out before stay good
+     * Logs how many were recovered and how many no known room key opens, those stay skipped like before
+     */
+    private void migrateKeys(ChatLog log) throws IOException {
+        if (keysChecked) return;
+        synchronized (keysLock) {
+            if (keysChecked) return;
+            Path marker = log.dir().resolve(KEYS_MARKER);
+            if (log.segments().isEmpty() || Files.exists(marker)) {
+                //nothing from before per room keys, and whatever gets appended from now on is under this room's key
+                keysChecked = true;
+                return;
+            }
+            SecretKey key = getAesKey();
+            Cipher cipher = CIPHER.get();
+            OldKeys old = new OldKeys(getDataDir(), room.roomId);
+            int[] unrecovered = {0};
+            int recovered = log.rewriteInPlace(e -> {
+                if (open(cipher, key, e) != null) return null;
+                byte[] plaintext = old.open(cipher, e);
+                try {
+                    if (plaintext != null) return reseal(cipher, key, e, plaintext);
+                } catch (GeneralSecurityException ex) {
+                    //counted below
+                }
+                unrecovered[0]++;
+                return null;
+            });
+            KEYS_RECOVERED.add(recovered);
+            KEYS_UNRECOVERED.add(unrecovered[0]);
+            if (recovered > 0 || unrecovered[0] > 0) {
+                System.err.println("chat log " + log.dir() + ": re-encrypted " + recovered
+                    + " records from another room's key, " + unrecovered[0] + " could not be decrypted with any known key");
+            }
+            Files.write(marker, new byte[0]);
+            keysChecked = true;
+        }
+    }
+
+    //keys of the other rooms in the data dir, listed the first time a record needs them
+    //keys that opened something move to the front, a room's old records are mostly all under the same one
+    private static final class OldKeys {
+        private final File dataDir;
+        private final UUID self;
+        private List<SecretKey> keys;
+        private int worked; //keys[0, worked) have opened a record
+        private int fullScans;
+
+        OldKeys(File dataDir, UUID self) {
+            this.dataDir = dataDir;
+            this.self = self;
+        }
+
+        //plaintext of e under whichever of them opens it, null if none do
+        byte[] open(Cipher cipher, ChatLog.Entry e) {
+            if (keys == null) keys = list();
+            int n = fullScans < MAX_FULL_SCANS ? keys.size() : worked;
+            for (int i = 0; i < n; i++) {
+                byte[] plaintext = DataManager.open(cipher, keys.get(i), e);
+                if (plaintext == null) continue;
+                if (i >= worked) Collections.swap(keys, i, worked++);
+                return plaintext;
+            }
+            if (n > worked) fullScans++;
+            return null;
+        }
+
+        private List<SecretKey> list() {
+            Set<UUID> ids = new LinkedHashSet<>();
+            File[] files = dataDir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    UUID id = LogRetention.roomId(f.toPath());
+                    if (id != null && !id.equals(self)) ids.add(id);
+                }
+            }
+            List<SecretKey> out = new ArrayList<>(ids.size());
+            for (UUID id : ids) out.add(deriveKey(id));
+            return out;
+        }
+    }
+
+    private static byte[] aad(long timestampMs, String sender) {
+        byte[] name = sender == null ? new byte[0] : sender.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(8 + name.length).putLong(timestampMs).put(name).array();
+    }
+
+    /**
+     * Moves a legacy .txt log (one <Base64(nonce)>:<Base64(ciphertext+tag)> per line) into segments
+     * Lines that decrypt are copied over byte for byte (re-encrypted if they were under another room's key), anything else (plaintext, damaged lines) is kept by encrypting
+     * the raw line, which is what getLogs used to hand back for those
+     * The .txt is renamed first so only one caller does the import, and deleted once the records are written
+     */
+    private void importLegacy(ChatLog log) throws IOException {
+        if (legacyChecked) return;
+        File legacy = getDataPath();
+        if (!legacy.exists()) {
+            //a long lived DataManager only needs to look once, nothing writes .txt logs anymore
+            legacyChecked = true;
+            return;
+        }
+        File importing = new File(legacy.getPath() + ".importing");
+        if (!legacy.renameTo(importing)) return; // someone else got there first
+
+        long ts = importing.lastModified();
+        SecretKey key = getAesKey();
+        OldKeys old = new OldKeys(getDataDir(), room.roomId);
+        List<ChatLog.Entry> entries = new ArrayList<>();
+        try {
+            Cipher cipher = CIPHER.get();
+            for (String raw : Files.readAllLines(importing.toPath(), StandardCharsets.UTF_8)) {
+                String line = raw.trim();
+                if (line.isEmpty()) continue;
+                ChatLog.Entry e = parseLegacyLine(line, ts);
+                if (e != null && open(cipher, key, e) == null) {
+                    //written under another room's key (see KEYS_MARKER), bring it over to ours
+                    byte[] plaintext = old.open(cipher, e);
+                    e = plaintext == null ? null : reseal(cipher, key, e, plaintext);
+                }
+                if (e == null) {
+                    byte[] nonce = new byte[NONCE_BYTES];
+                    RNG.nextBytes(nonce);
+                    cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+                    e = new ChatLog.Entry(ts, 0, null, nonce, cipher.doFinal(line.getBytes(StandardCharsets.UTF_8)));
+                }
+                entries.add(e);
+            }
+        } catch (IOException e) {
+            importing.renameTo(legacy);
+            throw e;
         } catch (Exception e) {
-            //if the decryption fails then spit out ray line instead of losing data
-            System.err.println("Failed to decrypt line, returning raw: " + e.getMessage());
-            return line;
+            importing.renameTo(legacy);
+            throw new IOException("Failed to import legacy log " + legacy, e);
+        }
+
+        log.appendAll(entries);
+        Files.delete(importing.toPath());
+        legacyChecked = true;
+    }
+
+    //encryption format: nonceB64:ctB64, null if the line isn't in it
+    private static ChatLog.Entry parseLegacyLine(String line, long ts) {
+        int idx = line.indexOf(':');
+        if (idx <= 0) return null;
+        try {
+            byte[] nonce = Base64.getDecoder().decode(line.substring(0, idx));
+            byte[] ct = Base64.getDecoder().decode(line.substring(idx + 1));
+            return new ChatLog.Entry(ts, 0, null, nonce, ct);
+        } catch (IllegalArgumentException e) {
+            return null;
         }
     }
 }
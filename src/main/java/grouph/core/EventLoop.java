@@ -0,0 +1,141 @@
+package grouph.core;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// one selector on one thread, owns a slice of the nio connections
+// everything that touches a connections SSLEngine or channel has to run on this thread,
+// other threads hand work over with execute() which wakes the selector up
+final class EventLoop implements Runnable, Executor {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // delayed tasks, soonest first, loop thread only
+    private final PriorityQueue<Delayed> timers = new PriorityQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) selector.wakeup(); // kick it out of select()
+    }
+
+    // run task on the loop after roughly delayNanos, select() only times out in whole millis so sub ms delays round up
+    void schedule(Runnable task, long delayNanos) {
+        long at = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new Delayed(at, task)));
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // dont park in select() if there is already work queued up
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    long wait = timers.peek().at - System.nanoTime();
+                    if (wait <= 0) selector.selectNow();
+                    else selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999_999)));
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        conn.closeNow();
+                        continue;
+                    }
+                    conn.onReady(key.readyOps());
+                }
+
+                runTasks();
+                runTimers();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                // one bad connection shouldnt take down the whole loop
+                System.err.println("event loop error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable r;
+        while ((r = tasks.poll()) != null) {
+            try {
+                r.run();
+            } catch (Exception e) {
+                System.err.println("event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().at - now <= 0) {
+            try {
+                timers.poll().task.run();
+            } catch (Exception e) {
+                System.err.println("event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class Delayed implements Comparable<Delayed> {
+        final long at;
+        final Runnable task;
+
+        Delayed(long at, Runnable task) {
+            this.at = at;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(at - o.at, 0);
+        }
+    }
+
+    void shutdown() {
+        execute(() -> {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection c) c.closeNow();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        });
+    }
+}
@@ -0,0 +1,184 @@
+package grouph.core;
+
+import proto.Frame;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// broadcast for big rooms, spread over rooms.fanOutThreads workers instead of all on the senders thread
+// a room at or past rooms.fanOutThreshold members hands each message to the workers, one batch per worker,
+// every member always going to the same worker (by identity hash), so:
+//  - each worker is one thread working through its queue in order, so whoever sent two messages
+//    has them queued to every member in the order they sent them
+//  - a room that drops back under the threshold keeps going through the workers until they have
+//    caught up on it (Room.fanOutPending), an inline send could otherwise overtake a queued one
+//  - every batch holds its own reference to the frame, released once its members all have it queued
+// why bother when a send only queues (encrypting and writing happen on the connection's side, see OutboundQueue):
+// on nio a send is the offer plus, for a member with nothing queued, a flush task handed to its event loop and a
+// selector wakeup, a few hundred ns each, so a message to a 10k room is milliseconds of one loop doing nothing but
+// that while every other connection on it waits. here the sender's thread only does an offer per worker
+// the queues are bounded (rooms.fanOutQueue batches each) and a sender never waits on them (it may well be
+// an event loop), when a worker is that far behind its share of the room gets the outbound.overflow policy,
+// the same as a client overflowing its own queue: with disconnect theyre all dropped as slow consumers, with
+// drop_oldest the oldest batch waiting on that worker makes room (rooms.fanOutDropped counts who missed it)
+// either way its never sent inline, where it could overtake what's queued
+final class FanOut {
+    static final int DEFAULT_THRESHOLD = 1000;
+    static final int DEFAULT_QUEUE = 1024; // batches per worker
+
+    private static final LongAdder SHARDED = Metrics.counter("rooms.fanOutSharded");
+    private static final LongAdder DROPPED = Metrics.counter("rooms.fanOutDropped");
+    // shared with OutboundQueue, its the same policy
+    private static final LongAdder SLOW_DISCONNECTS = Metrics.counter("outbound.slowConsumerDisconnects");
+
+    // one room's message for one worker's share of its members
+    private static final class Batch {
+        final Room room;
+        final UserSession[] members;
+        final Frame frame;
+
+        Batch(Room room, UserSession[] members, Frame frame) {
+            this.room = room;
+            this.members = members;
+            this.frame = frame;
+        }
+    }
+
+    // a member list split up by worker, kept on the room until the members change
+    static final class Plan {
+        final UserSession[] of;
+        final UserSession[][] parts;
+
+        Plan(UserSession[] of, UserSession[][] parts) {
+            this.of = of;
+            this.parts = parts;
+        }
+    }
+
+    private final int threshold;
+    private final ServerConfig.Overflow overflow;
+    private final ArrayBlockingQueue<Batch>[] queues;
+    private final Thread[] threads;
+    private volatile boolean running = true;
+
+    FanOut(ServerConfig config) {
+        this(config.roomFanOutThreshold, config.roomFanOutThreads, config.roomFanOutQueue, config.outboundOverflow);
+    }
+
+    FanOut(int threshold, int workers, int queue, ServerConfig.Overflow overflow) {
+        this.threshold = threshold;
+        this.overflow = overflow;
+        this.queues = newQueues(workers);
+        this.threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            queues[i] = new ArrayBlockingQueue<>(queue);
+            ArrayBlockingQueue<Batch> q = queues[i];
+            threads[i] = new Thread(() -> work(q), "fan-out-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        Metrics.gauge("rooms.fanOutQueued", () -> {
+            long n = 0;
+            for (ArrayBlockingQueue<Batch> q : queues) n += q.size();
+            return n;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayBlockingQueue<Batch>[] newQueues(int n) {
+        return (ArrayBlockingQueue<Batch>[]) new ArrayBlockingQueue<?>[n];
+    }
+
+    void shutdown() {
+        running = false;
+        for (Thread t : threads) t.interrupt();
+    }
+
+    // send frame to room's members on the workers, false if the room should just do it inline
+    boolean broadcast(Room room, UserSession[] members, Frame frame) {
+        if (!running || threshold <= 0) return false;
+        if (members.length < threshold && room.fanOutPending.get() == 0) return false;
+        SHARDED.increment();
+        UserSession[][] parts = plan(room, members).parts;
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].length == 0) continue;
+            frame.retain();
+            room.fanOutPending.incrementAndGet();
+            Batch b = new Batch(room, parts[i], frame);
+            if (!queues[i].offer(b)) overflow(queues[i], b);
+        }
+        return true;
+    }
+
+    // worker is that far behind, b cant just wait its turn
+    private void overflow(ArrayBlockingQueue<Batch> queue, Batch b) {
+        if (overflow == ServerConfig.Overflow.DROP_OLDEST) {
+            Batch oldest = queue.poll();
+            if (oldest != null) drop(oldest);
+            if (queue.offer(b)) return;
+            drop(b); // filled right back up under us
+            return;
+        }
+        // DISCONNECT, they can reconnect and catch up with GET_LOGS rather than silently miss this
+        System.err.println("dropping " + b.members.length + " slow clients in room " + b.room.roomCode
+            + ", fan-out queue full");
+        SLOW_DISCONNECTS.add(b.members.length);
+        for (UserSession u : b.members) u.conn.close();
+        drop(b);
+    }
+
+    private static void drop(Batch b) {
+        DROPPED.add(b.members.length);
+        b.frame.release();
+        b.room.fanOutPending.decrementAndGet();
+    }
+
+    private Plan plan(Room room, UserSession[] members) {
+        Plan p = room.fanOutPlan;
+        if (p != null && p.of == members) return p;
+        int workers = queues.length;
+        int[] counts = new int[workers];
+        for (UserSession u : members) counts[worker(u, workers)]++;
+        UserSession[][] parts = new UserSession[workers][];
+        for (int i = 0; i < workers; i++) parts[i] = new UserSession[counts[i]];
+        int[] at = new int[workers];
+        for (UserSession u : members) {
+            int w = worker(u, workers);
+            parts[w][at[w]++] = u;
+        }
+        p = new Plan(members, parts);
+        room.fanOutPlan = p; // racing senders might both build one, either is right
+        return p;
+    }
+
+    private static int worker(UserSession u, int workers) {
+        return Math.floorMod(System.identityHashCode(u), workers);
+    }
+
+    private void work(ArrayBlockingQueue<Batch> queue) {
+        while (true) {
+            Batch b;
+            try {
+                b = queue.take();
+            } catch (InterruptedException e) {
+                // whatever made it in still goes out, its frame references have to be let go of anyway
+                while ((b = queue.poll()) != null) send(b);
+                return;
+            }
+            send(b);
+        }
+    }
+
+    private static void send(Batch b) {
+        try {
+            for (UserSession u : b.members) {
+                try {
+                    u.conn.send(b.frame);
+                } catch (Exception ignored) { }
+            }
+        } finally {
+            b.frame.release();
+            b.room.fanOutPending.decrementAndGet();
+        }
+    }
+}
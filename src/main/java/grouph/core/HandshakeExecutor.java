@@ -0,0 +1,87 @@
+package grouph.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// tls handshakes are the expensive bit of a connect (rsa/ecdhe + checking the client cert chain)
+// so they get their own fixed size pool instead of running on the accept thread or an event loop
+// the queue in front of it is bounded, when its full we shed the connection rather than pile up work
+// every handshake also gets a deadline so a client that stops talking mid handshake cant hold a thread
+final class HandshakeExecutor {
+    private final ThreadPoolExecutor pool;
+    private final ScheduledExecutorService timer;
+    private final long timeoutMs;
+
+    private final LongAdder ok = Metrics.counter("handshake.ok");
+    private final LongAdder failed = Metrics.counter("handshake.failed");
+    private final LongAdder timedOut = Metrics.counter("handshake.timeout");
+    private final LongAdder rejected = Metrics.counter("handshake.rejected");
+    private final Metrics.Timer latency = Metrics.timer("handshake.latency");
+
+    HandshakeExecutor(ServerConfig config) {
+        AtomicInteger n = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(
+            config.handshakeThreads, config.handshakeThreads,
+            60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(config.handshakeQueue),
+            r -> {
+                Thread t = new Thread(r, "handshake-" + n.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.AbortPolicy() // throw so we can count and shed
+        );
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "handshake-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timeoutMs = config.handshakeTimeoutMs;
+        Metrics.gauge("handshake.queue", () -> pool.getQueue().size());
+    }
+
+    long timeoutMs() {
+        return timeoutMs;
+    }
+
+    // false if the queue is full, caller should drop the connection
+    boolean submit(Runnable task) {
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    // runs onTimeout if nobody cancels the returned future before the handshake timeout
+    ScheduledFuture<?> deadline(Runnable onTimeout) {
+        return timer.schedule(onTimeout, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    void succeeded(long startNanos) {
+        ok.increment();
+        latency.recordSince(startNanos);
+    }
+
+    void failed() {
+        failed.increment();
+    }
+
+    void timedOut() {
+        timedOut.increment();
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,61 @@
+package grouph.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// GET_LOGS for clients on the nio transport, off the event loop
+// a history page is segment reads, maybe an index rebuild and up to MAX_PAGE decrypts, on the loop that would
+// stall every other connection it owns, so the loop just hands the request over and the acks come back
+// through the session's outbound queue like any other send
+//  - logs.readThreads workers, each a single thread with its own bounded queue (logs.readQueue)
+//  - a session always lands on the same one, so two pages asked for in a row come back in that order
+//  - a full queue says no straight away and the client gets a 503, the loop never waits on it
+// the blocking transport already has a thread per client and reads history on it like before
+final class HistoryReads {
+    private final LongAdder rejected = Metrics.counter("history.rejected");
+
+    private final ThreadPoolExecutor[] workers;
+
+    HistoryReads(ServerConfig config) {
+        this(config.logReadThreads, config.logReadQueue);
+    }
+
+    HistoryReads(int threads, int queue) {
+        workers = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "history-" + i;
+            workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue),
+                r -> {
+                    Thread t = new Thread(r, name);
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        }
+        Metrics.gauge("history.queued", () -> {
+            long n = 0;
+            for (ThreadPoolExecutor w : workers) n += w.getQueue().size();
+            return n;
+        });
+    }
+
+    // run a read for session on its worker, false if that worker is too far behind to take it
+    boolean submit(UserSession session, Runnable read) {
+        ThreadPoolExecutor w = workers[Math.floorMod(System.identityHashCode(session), workers.length)];
+        try {
+            w.execute(read);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    void shutdown() {
+        for (ThreadPoolExecutor w : workers) w.shutdownNow();
+    }
+}
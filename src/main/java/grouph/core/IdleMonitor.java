@@ -0,0 +1,143 @@
+package grouph.core;
+
+import proto.Packets;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// drops clients that have gone quiet for heartbeat.idleTimeoutSec, mostly half open tcp connections
+// where the other end vanished without a fin, which would otherwise keep their thread and room seat forever
+// a hashed timing wheel: heartbeat.tickMs wide buckets, enough of them to cover the timeout
+//  - touching a session is just the lastSeenMs set the dispatcher already does on every packet, no wheel work
+//  - each tracked session sits in the bucket for when it would time out if it never spoke again,
+//    when the wheel gets there it either really has (evict) or it spoke since and moves to its new deadline
+// so theres no scheduled task per session and each one costs O(1) about once per timeout
+// the buckets are only touched by the monitor thread, new sessions come in through a queue
+// eviction says why (408) and closes the connection, the transport then does the usual
+// dispatcher.disconnected -> detachFromRoom, if the close doesnt go through it gets closed hard
+final class IdleMonitor {
+    private static final LongAdder EVICTED = Metrics.counter("sessions.idleEvicted");
+    private static final long GRACE_MS = 5000; // for a polite close to finish before we pull the plug
+
+    // a session on the wheel, closing once weve told it to go
+    private static final class Entry {
+        final UserSession session;
+        boolean closing;
+
+        Entry(UserSession session) {
+            this.session = session;
+        }
+    }
+
+    private final long timeoutMs;
+    private final long tickMs;
+    private final ArrayDeque<Entry>[] wheel;
+    private final ConcurrentLinkedQueue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    private final LongAdder tracked = new LongAdder();
+    private long current = -1; // tick the wheel is on, -1 until the first advance
+    private Thread thread;
+
+    IdleMonitor(ServerConfig config) {
+        this.timeoutMs = TimeUnit.SECONDS.toMillis(config.heartbeatIdleTimeoutSec);
+        this.tickMs = config.heartbeatTickMs;
+        // a deadline is never more than timeout (or the grace) ahead, so this many buckets never wrap onto it
+        int buckets = (int) (Math.max(timeoutMs, GRACE_MS) / tickMs) + 2;
+        this.wheel = newWheel(buckets);
+        for (int i = 0; i < buckets; i++) wheel[i] = new ArrayDeque<>();
+        Metrics.gauge("sessions.tracked", this::size);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayDeque<Entry>[] newWheel(int n) {
+        return (ArrayDeque<Entry>[]) new ArrayDeque<?>[n];
+    }
+
+    // nothing to do with heartbeat.idleTimeoutSec=0
+    void start() {
+        if (timeoutMs <= 0) return;
+        thread = new Thread(this::loop, "idle-monitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void shutdown() {
+        if (thread != null) thread.interrupt();
+    }
+
+    // watch a new session, from any thread
+    void track(UserSession session) {
+        if (timeoutMs <= 0) return;
+        incoming.add(new Entry(session));
+        tracked.increment();
+    }
+
+    private void loop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(tickMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            advance(System.currentTimeMillis());
+        }
+    }
+
+    // run every bucket up to nowMs (more than one if we fell behind), returns how many got evicted
+    int advance(long nowMs) {
+        long target = nowMs / tickMs;
+        if (current < 0) current = target;
+        Entry e;
+        while ((e = incoming.poll()) != null) schedule(e, e.session.lastSeenMs.get() + timeoutMs);
+        int evicted = 0;
+        for (; current <= target; current++) {
+            ArrayDeque<Entry> bucket = wheel[(int) (current % wheel.length)];
+            // anything rescheduled goes into a later bucket, so this one only shrinks
+            for (int n = bucket.size(); n > 0; n--) {
+                e = bucket.poll();
+                if (!e.session.conn.isOpen()) {
+                    tracked.decrement(); // went away by itself
+                    continue;
+                }
+                if (e.closing) {
+                    e.session.conn.close(); // didnt go quietly
+                    tracked.decrement();
+                    continue;
+                }
+                long deadline = e.session.lastSeenMs.get() + timeoutMs;
+                if (deadline > nowMs) {
+                    schedule(e, deadline); // heard from since
+                    continue;
+                }
+                evict(e, nowMs);
+                evicted++;
+                schedule(e, nowMs + GRACE_MS);
+            }
+        }
+        return evicted;
+    }
+
+    private void evict(Entry e, long nowMs) {
+        EVICTED.increment();
+        e.closing = true;
+        UserSession s = e.session;
+        System.err.printf("evicting idle client %s, nothing from them for %ds\n",
+            s.conn.remoteAddress(), (nowMs - s.lastSeenMs.get()) / 1000);
+        try {
+            s.send(Packets.error(408, "idle timeout"));
+        } catch (Exception ignored) {
+        }
+        s.conn.flushAndClose();
+    }
+
+    private void schedule(Entry e, long atMs) {
+        long tick = Math.max(atMs / tickMs, current + 1);
+        wheel[(int) (tick % wheel.length)].add(e);
+    }
+
+    // sessions on the wheel or waiting to get on it
+    long size() {
+        return tracked.sum();
+    }
+}
@@ -0,0 +1,223 @@
+package grouph.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// sparse index for one chat log segment, kept next to it: 00000003.seg -> 00000003.idx
+// every Nth record of the segment (0, N, 2N, ...) gets a 16 byte entry:
+//   int ordinal (record number in the segment), long timestampMs, int byte offset
+// so a page or a "since T" lookup binary searches these and only scans the few records after an entry
+// instead of the segment from the start
+// the writer appends entries after the records they point at, so after a crash the index can be behind
+// the segment but never ahead of it, load() catches up from the last entry (or the whole segment if
+// the index is missing) so its never trusted further than the data it describes
+// its only ever a hint, nothing is lost if it goes, so it isnt fsynced
+final class LogIndex {
+    static final int DEFAULT_EVERY = 64;
+    static final int ENTRY = 4 + 8 + 4;
+    private static final String SUFFIX = ".idx";
+
+    private int[] ordinals = new int[16];
+    private long[] timestamps = new long[16];
+    private int[] offsets = new int[16];
+    private int size;
+    private int records;   // whole records in the segment
+    private long validEnd; // end of the last whole record, anything after is a torn write
+    private boolean stale; // the file on disk is missing entries we now have
+
+    private LogIndex() {}
+
+    static Path pathFor(Path seg) {
+        String name = seg.getFileName().toString();
+        return seg.resolveSibling(name.substring(0, name.lastIndexOf('.')) + SUFFIX);
+    }
+
+    // the index for seg, from its .idx plus whatever records came after the last entry
+    // (all of them if there is no .idx, eg segments written before indexes existed)
+    static LogIndex load(Path seg, int every) throws IOException {
+        LogIndex idx = new LogIndex();
+        long segSize = Files.size(seg);
+        idx.readEntries(pathFor(seg), segSize);
+        long from = idx.size == 0 ? 0 : idx.offsets[idx.size - 1];
+        int ordinal = idx.size == 0 ? 0 : idx.ordinals[idx.size - 1];
+        ByteBuffer buf = ChatLog.readRange(seg, from, segSize);
+        if (idx.size > 0 && (buf.limit() < 4 + ChatLog.FIXED || buf.getLong(4) != idx.timestamps[idx.size - 1])) {
+            // last entry doesnt point at the record it says it does (an index left over from before the segment
+            // was rewritten), none of it can be trusted, start again from the data
+            idx.size = 0;
+            idx.stale = true;
+            from = 0;
+            ordinal = 0;
+            buf = ChatLog.readRange(seg, 0, segSize);
+        }
+        int pos = 0;
+        while (buf.limit() - pos >= 4) {
+            int len = buf.getInt(pos);
+            if (len < ChatLog.FIXED || len > buf.limit() - pos - 4) break;
+            // the last entry we already have points at the first record scanned
+            if (!(pos == 0 && idx.size > 0) && ordinal % every == 0) {
+                idx.add(ordinal, buf.getLong(pos + 4), (int) (from + pos));
+                idx.stale = true;
+            }
+            ordinal++;
+            pos += 4 + len;
+        }
+        idx.records = ordinal;
+        idx.validEnd = from + pos;
+        return idx;
+    }
+
+    // entries from the .idx, stopping at the first one that doesnt fit the segment (torn, or left over from
+    // a segment that got cut back), those get rebuilt from the data
+    private void readEntries(Path file, long segSize) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            stale = true;
+            return;
+        }
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        while (b.remaining() >= ENTRY) {
+            int ordinal = b.getInt();
+            long ts = b.getLong();
+            int offset = b.getInt();
+            boolean fits = size == 0
+                ? ordinal == 0 && offset == 0
+                : ordinal > ordinals[size - 1] && offset > offsets[size - 1];
+            if (!fits || offset >= segSize) {
+                stale = true;
+                return;
+            }
+            add(ordinal, ts, offset);
+        }
+        if (b.hasRemaining()) stale = true;
+    }
+
+    void add(int ordinal, long timestampMs, int offset) {
+        if (size == offsets.length) {
+            ordinals = Arrays.copyOf(ordinals, size * 2);
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        ordinals[size] = ordinal;
+        timestamps[size] = timestampMs;
+        offsets[size] = offset;
+        size++;
+    }
+
+    // replace the .idx with what we have, through a temp file so a reader never sees half of it
+    void write(Path seg) throws IOException {
+        Path file = pathFor(seg);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteBuffer b = ByteBuffer.allocate(size * ENTRY);
+        for (int i = 0; i < size; i++) entry(b, ordinals[i], timestamps[i], offsets[i]);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            b.flip();
+            while (b.hasRemaining()) ch.write(b);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        stale = false;
+    }
+
+    static ByteBuffer entry(ByteBuffer b, int ordinal, long timestampMs, int offset) {
+        return b.putInt(ordinal).putLong(timestampMs).putInt(offset);
+    }
+
+    int records() {
+        return records;
+    }
+
+    long validEnd() {
+        return validEnd;
+    }
+
+    boolean stale() {
+        return stale;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long firstTimestamp() {
+        return timestamps[0];
+    }
+
+    // where to start scanning so that at least limit whole records come before end
+    // (or 0 if there arent that many), takes the last entry before end and steps back
+    // to one at least limit - 1 records further back
+    int startFor(long end, int limit) {
+        int k = lastBelow(end);
+        if (k <= 0) return 0;
+        int want = ordinals[k] - limit + 1;
+        if (want <= 0) return 0;
+        int lo = 0, hi = k;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (ordinals[mid] <= want) lo = mid; else hi = mid - 1;
+        }
+        return offsets[lo];
+    }
+
+    // where to start scanning for the first record at or after timestampMs, the last entry older than it
+    // timestamps come from the writer's clock so they only mostly go up, the caller scans forward from here
+    int startForTime(long timestampMs) {
+        int lo = 0, hi = size - 1, found = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps[mid] < timestampMs) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return size == 0 ? 0 : offsets[found];
+    }
+
+    // ordinal and offset of the last entry at or before ordinal, as {ordinal, offset}
+    int[] floorOrdinal(int ordinal) {
+        int lo = 0, hi = size - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ordinals[mid] <= ordinal) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found < 0 ? new int[] {0, 0} : new int[] {ordinals[found], offsets[found]};
+    }
+
+    // timestamp the entry at exactly offset says its record has, so a caller can check the data agrees
+    // before trusting it, MIN_VALUE if theres no entry there
+    long timestampAt(int offset) {
+        int i = Arrays.binarySearch(offsets, 0, size, offset);
+        return i < 0 ? Long.MIN_VALUE : timestamps[i];
+    }
+
+    // last entry strictly before offset, -1 if none
+    private int lastBelow(long offset) {
+        int lo = 0, hi = size - 1, found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (offsets[mid] < offset) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+}
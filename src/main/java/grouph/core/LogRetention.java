@@ -0,0 +1,179 @@
+package grouph.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+// background cleanup so the chat logs dont grow until the disk is full
+// every retention.intervalSec it walks <data dir>/grouph and for each room's log directory:
+//  - a room thats gone (not in the registry) and hasnt been written to for retention.deadRoomDays
+//    gets its directory deleted, plus any legacy <roomId>.txt
+//  - otherwise retention.maxAgeDays, retention.maxMessages and retention.maxBytes each say how much to keep,
+//    older records are dropped, whole segments deleted and the one the cut lands in rewritten (see ChatLog)
+// the segment a room is appending to is never touched, so no open RoomLogs handle ends up on a deleted file,
+// and a dead room's handle is closed before its directory goes
+// it all runs on one low priority thread and copying is paced to retention.ioBytesPerSec,
+// so a big cleanup doesnt take the disk away from the log writers
+public final class LogRetention {
+    private final LongAdder bytesFreed = Metrics.counter("retention.bytesFreed");
+    private final LongAdder roomsDeleted = Metrics.counter("retention.roomsDeleted");
+    private final LongAdder failed = Metrics.counter("retention.failed");
+
+    private final RoomRegistry registry;
+    private final RoomLogs logs;
+    private final long segmentBytes;
+    private final int indexEvery;
+    private final long intervalMs;
+    private final long maxAgeMs;
+    private final long maxMessages;
+    private final long maxBytes;
+    private final long deadRoomMs;
+    private final long ioBytesPerSec;
+    private Thread thread;
+    private long nextFreeNanos; // io pacing, when the budget is paid off
+
+    LogRetention(RoomRegistry registry, RoomLogs logs, ServerConfig config) {
+        this.registry = registry;
+        this.logs = logs;
+        this.segmentBytes = config.logSegmentBytes;
+        this.indexEvery = config.logIndexEvery;
+        this.intervalMs = TimeUnit.SECONDS.toMillis(config.retentionIntervalSec);
+        this.maxAgeMs = TimeUnit.DAYS.toMillis(config.retentionMaxAgeDays);
+        this.maxMessages = config.retentionMaxMessages;
+        this.maxBytes = config.retentionMaxBytes;
+        this.deadRoomMs = TimeUnit.DAYS.toMillis(config.retentionDeadRoomDays);
+        this.ioBytesPerSec = config.retentionIoBytesPerSec;
+    }
+
+    // nothing to do with retention.intervalSec=0
+    void start() {
+        if (intervalMs <= 0) return;
+        thread = new Thread(this::loop, "log-retention");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    void shutdown() {
+        if (thread == null) return;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void loop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long freed = runOnce(DataManager.findDataDir().toPath());
+            if (freed > 0) System.out.printf("log retention freed %d bytes\n", freed);
+        }
+    }
+
+    // one pass over every room's logs under root, returns the bytes freed
+    long runOnce(Path root) {
+        long freed = 0;
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(root)) {
+            entries = files.toList();
+        } catch (IOException e) {
+            failed.increment();
+            System.err.println("log retention couldnt list " + root + ": " + e.getMessage());
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        for (Path p : entries) {
+            if (Thread.currentThread().isInterrupted()) break;
+            UUID roomId = roomId(p);
+            if (roomId == null) continue;
+            try {
+                freed += Files.isDirectory(p) ? room(roomId, p, now) : legacy(roomId, p, now);
+            } catch (IOException e) {
+                failed.increment();
+                System.err.println("log retention failed on " + p + ": " + e.getMessage());
+            }
+            pace(4096); // every room is at least a directory listing
+        }
+        bytesFreed.add(freed);
+        return freed;
+    }
+
+    private long room(UUID roomId, Path dir, long now) throws IOException {
+        ChatLog log = new ChatLog(dir, segmentBytes, indexEvery, false);
+        long lastWrite = log.lastModifiedMs();
+        if (lastWrite == 0) lastWrite = Files.getLastModifiedTime(dir).toMillis();
+        if (dead(roomId, lastWrite, now)) {
+            logs.close(roomId);
+            long size = deleteTree(dir);
+            roomsDeleted.increment();
+            return size;
+        }
+        long freed = 0;
+        if (maxAgeMs > 0) freed += log.dropBefore(log.seek(now - maxAgeMs), this::pace);
+        if (maxMessages > 0) freed += log.dropBefore(log.cursorFromEnd(maxMessages), this::pace);
+        if (maxBytes > 0) freed += log.dropOldestOver(maxBytes);
+        return freed;
+    }
+
+    // <roomId>.txt from before the segment format, only still here if the room never got touched again
+    private long legacy(UUID roomId, Path file, long now) throws IOException {
+        if (!file.getFileName().toString().endsWith(".txt")) return 0;
+        if (!dead(roomId, Files.getLastModifiedTime(file).toMillis(), now)) return 0;
+        long size = Files.size(file);
+        Files.delete(file);
+        return size;
+    }
+
+    // room ids are random per room, once one is out of the registry nobody can get back into it
+    private boolean dead(UUID roomId, long lastWriteMs, long now) {
+        return deadRoomMs > 0 && registry.getById(roomId) == null && now - lastWriteMs > deadRoomMs;
+    }
+
+    private static long deleteTree(Path dir) throws IOException {
+        long size = 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+                if (Files.isRegularFile(p)) size += Files.size(p);
+                Files.delete(p);
+            }
+        }
+        return size;
+    }
+
+    // the room a file or directory in the data dir belongs to, null if its not a room's
+    static UUID roomId(Path p) {
+        String name = p.getFileName().toString();
+        int dot = name.indexOf('.');
+        try {
+            return UUID.fromString(dot < 0 ? name : name.substring(0, dot));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // charge bytes of io to the budget, sleeping off whatever we're ahead of it by
+    private void pace(long bytes) {
+        if (ioBytesPerSec <= 0) return;
+        long now = System.nanoTime();
+        nextFreeNanos = Math.max(nextFreeNanos, now) + TimeUnit.SECONDS.toNanos(bytes) / ioBytesPerSec;
+        long wait = nextFreeNanos - now;
+        if (wait <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // shutting down, runOnce stops at the next room
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package grouph.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// chat persistence, off the path between a CHAT_SEND and its broadcast
+// the dispatcher just drops the message in a queue and broadcasts straight away, a background writer
+// does the encrypting and disk work in batches (group commit):
+//  - shards, each a bounded queue (ArrayBlockingQueue is a ring buffer underneath) and one thread,
+//    a room always hashes to the same shard so its messages hit the disk in the order they were sent
+//  - a writer takes everything waiting (up to logs.batch), groups it by room and does one appendAll per room
+//  - then fsyncs per logs.fsync: never, every logs.fsyncIntervalMs, or after every batch
+//  - the room's DataManager is looked up on the writer thread and only held for the batch, so submit never
+//    touches RoomLogs (opening or evicting a log can mean an fsync) and a log is never evicted mid write
+//  - a full queue pushes back: submit waits up to logs.enqueueTimeoutMs (not at all on an event loop)
+//    then says no, and the dispatcher tells the client to slow down rather than broadcasting something we wont keep
+public final class LogWriter {
+    private static final Pending STOP = new Pending(null, 0, null, null);
+
+    private final LongAdder rejected = Metrics.counter("logs.rejected");
+    private final LongAdder failed = Metrics.counter("logs.failed");
+    private final LongAdder batches = Metrics.counter("logs.batches");
+    private final LongAdder syncs = Metrics.counter("logs.fsyncs");
+    private final Metrics.Timer commitLatency = Metrics.timer("logs.commitLatency");
+
+    private final RoomRegistry registry;
+    private final Shard[] shards;
+    private final int maxBatch;
+    private final ServerConfig.Fsync fsync;
+    private final long fsyncIntervalNanos;
+    private final long enqueueTimeoutMs;
+
+    LogWriter(RoomRegistry registry, ServerConfig config) {
+        this.registry = registry;
+        this.maxBatch = config.logBatch;
+        this.fsync = config.logFsync;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.logFsyncIntervalMs);
+        this.enqueueTimeoutMs = config.logEnqueueTimeoutMs;
+        this.shards = new Shard[config.logWriters];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(config.logQueue);
+            Thread t = new Thread(shards[i], "log-writer-" + i);
+            t.setDaemon(true);
+            shards[i].thread = t;
+            t.start();
+        }
+        Metrics.gauge("logs.queued", () -> {
+            long n = 0;
+            for (Shard s : shards) n += s.queue.size();
+            return n;
+        });
+    }
+
+    // one message waiting for the disk
+    private static final class Pending {
+        final Room room;
+        final long timestampMs;
+        final String sender;
+        final String message;
+        final long enqueuedNanos = System.nanoTime();
+
+        Pending(Room room, long timestampMs, String sender, String message) {
+            this.room = room;
+            this.timestampMs = timestampMs;
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    // queue a message for room, false if the writer is too far behind to take it
+    boolean submit(Room room, String sender, String message) {
+        return submit(room, sender, message, true);
+    }
+
+    // wait says whether we may wait up to logs.enqueueTimeoutMs for space, an event loop mustnt
+    // (it would stall every connection on it), it just gets the no and the client the 503
+    boolean submit(Room room, String sender, String message, boolean wait) {
+        Pending p = new Pending(room, System.currentTimeMillis(), sender, message);
+        Shard shard = shards[Math.floorMod(room.roomId.hashCode(), shards.length)];
+        try {
+            if (wait ? shard.queue.offer(p, enqueueTimeoutMs, TimeUnit.MILLISECONDS) : shard.queue.offer(p)) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.increment();
+        return false;
+    }
+
+    // write out whatever is queued and stop the writers
+    void shutdown() {
+        for (Shard s : shards) {
+            try {
+                s.queue.put(STOP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for (Shard s : shards) {
+            try {
+                s.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private final class Shard implements Runnable {
+        final ArrayBlockingQueue<Pending> queue;
+        Thread thread;
+        private final List<Pending> batch = new ArrayList<>();
+        private final Set<DataManager> unsynced = new LinkedHashSet<>(); // for INTERVAL
+        private long nextSync;
+
+        Shard(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            boolean stopping = false;
+            while (!stopping) {
+                try {
+                    // with writes waiting on an interval fsync only sleep until its due
+                    long wait = unsynced.isEmpty() ? Long.MAX_VALUE : Math.max(0, nextSync - System.nanoTime());
+                    Pending first = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, maxBatch - 1);
+                        stopping = batch.remove(STOP);
+                        commit();
+                    }
+                    if (!unsynced.isEmpty() && (stopping || System.nanoTime() - nextSync >= 0)) syncAll();
+                } catch (InterruptedException e) {
+                    stopping = true;
+                } catch (Exception e) {
+                    // keep the writer alive whatever happens, commit() already counted the loss
+                    System.err.println("log writer error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void commit() {
+            if (batch.isEmpty()) return;
+            // group by room, keeping each room's messages in order
+            Map<Room, List<Pending>> byRoom = new LinkedHashMap<>();
+            for (Pending p : batch) byRoom.computeIfAbsent(p.room, k -> new ArrayList<>()).add(p);
+            boolean sync = fsync == ServerConfig.Fsync.BATCH;
+            for (Map.Entry<Room, List<Pending>> e : byRoom.entrySet()) {
+                DataManager dm = registry.acquireLogs(e.getKey());
+                try {
+                    write(dm, e.getValue(), sync);
+                } finally {
+                    registry.releaseLogs(e.getKey(), dm);
+                }
+            }
+            if (sync) syncs.increment();
+            batches.increment();
+            for (Pending p : batch) commitLatency.recordSince(p.enqueuedNanos);
+            batch.clear();
+        }
+
+        private void write(DataManager dm, List<Pending> pending, boolean sync) {
+            List<ChatLog.Entry> entries = new ArrayList<>(pending.size());
+            for (Pending p : pending) {
+                try {
+                    entries.add(dm.encrypt(p.timestampMs, p.sender, p.message));
+                } catch (Exception e) {
+                    failed.increment();
+                    System.err.println("Failed to encrypt message: " + e.getMessage());
+                }
+            }
+            try {
+                dm.appendAll(entries, sync);
+                if (fsync == ServerConfig.Fsync.INTERVAL) {
+                    // the clock starts with the oldest write nobody has synced yet
+                    // (one evicted before then was synced by its close, sync() on it does nothing)
+                    if (unsynced.isEmpty()) nextSync = System.nanoTime() + fsyncIntervalNanos;
+                    unsynced.add(dm);
+                }
+            } catch (Exception ex) {
+                failed.add(entries.size());
+                System.err.println("Failed to save messages: " + ex.getMessage());
+            }
+        }
+
+        private void syncAll() {
+            for (DataManager dm : unsynced) {
+                try {
+                    dm.sync();
+                } catch (Exception e) {
+                    System.err.println("Failed to fsync chat log: " + e.getMessage());
+                }
+            }
+            unsynced.clear();
+            syncs.increment();
+        }
+    }
+}
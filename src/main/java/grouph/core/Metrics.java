@@ -0,0 +1,107 @@
+package grouph.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+// dead simple metrics, named counters, gauges and timers in one static registry
+// LongAdder because lots of threads bump the same counter and we only read them now and then
+// snapshot() gives everything as name -> value, report() prints it every so often
+public final class Metrics {
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<String>> DETAILS = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    // something that only goes up, eg handshakes that failed
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    // something we read when asked, eg current queue depth, registering again replaces the old one
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    // how long something takes, keeps count, total and max
+    public static Timer timer(String name) {
+        return TIMERS.computeIfAbsent(name, n -> new Timer());
+    }
+
+    // something that isnt one number, eg which clients have the deepest queues, only report() prints these
+    public static void detail(String name, Supplier<String> value) {
+        DETAILS.put(name, value);
+    }
+
+    public static Map<String, String> details() {
+        Map<String, String> out = new TreeMap<>();
+        DETAILS.forEach((k, v) -> {
+            try {
+                out.put(k, v.get());
+            } catch (RuntimeException ignored) {
+                // same as a gauge, skip it
+            }
+        });
+        return out;
+    }
+
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> out = new TreeMap<>();
+        COUNTERS.forEach((k, v) -> out.put(k, v.sum()));
+        GAUGES.forEach((k, v) -> {
+            try {
+                out.put(k, v.getAsLong());
+            } catch (RuntimeException ignored) {
+                // gauge owner went away, skip it
+            }
+        });
+        TIMERS.forEach((k, t) -> {
+            long n = t.count.sum();
+            out.put(k + ".count", n);
+            out.put(k + ".avgUs", n == 0 ? 0 : t.totalNanos.sum() / n / 1000);
+            out.put(k + ".maxUs", t.maxNanos.get() / 1000);
+        });
+        return out;
+    }
+
+    // print a snapshot every intervalSec seconds on a daemon thread, returns null if turned off
+    public static ScheduledExecutorService report(int intervalSec) {
+        if (intervalSec <= 0) return null;
+        ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        s.scheduleAtFixedRate(() -> {
+            System.out.println("metrics " + snapshot());
+            details().forEach((k, v) -> System.out.println("metrics " + k + " " + v));
+        }, intervalSec, intervalSec, TimeUnit.SECONDS);
+        return s;
+    }
+
+    public static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        // record time since a System.nanoTime() start
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+}
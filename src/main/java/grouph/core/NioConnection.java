@@ -0,0 +1,433 @@
+package grouph.core;
+
+import proto.Frame;
+import proto.FrameTooLargeException;
+import proto.PacketView;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// one client on the nio transport
+// SSLEngine does the tls, we just shovel bytes: network -> netIn -> unwrap -> appIn -> PacketView (read in place)
+// and the other way: outbound frames -> wrap -> netOut -> network
+// all of the engine/buffer work happens on the owning EventLoop thread, send() and close() can be called from anywhere
+final class NioConnection implements Connection {
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+    private static final int MAX_BATCH = 64;
+    private static final LongAdder FRAMES = Metrics.counter("outbound.frames");
+    private static final LongAdder RECORDS = Metrics.counter("outbound.records");
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final EventLoop loop;
+    private final PacketDispatcher dispatcher;
+    private final HandshakeExecutor handshakes;
+    private final UserSession session;
+    private final String remote;
+
+    private SelectionKey key;
+    private ByteBuffer netIn;  // encrypted bytes from the client (write mode)
+    private ByteBuffer appIn;  // decrypted bytes waiting to become packets (write mode)
+    private ByteBuffer netOut; // encrypted bytes waiting for the socket (write mode)
+    private final PacketView view; // reused for every frame we decode out of appIn
+
+    // frames from any thread waiting to be wrapped, drained on the loop thread
+    private final OutboundQueue outbound;
+    // frames being wrapped, [batchHead, batchTail) still have bytes left
+    // SSLEngine.wrap takes an array, so a run of small frames goes out as one tls record with no copying
+    private final Frame[] batch = new Frame[MAX_BATCH];
+    private final ByteBuffer[] batchBufs = new ByteBuffer[MAX_BATCH];
+    private int batchHead;
+    private int batchTail;
+    private final int flushBytes;
+    private final long flushDelayNanos;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean handshakeDone;
+    private boolean inboundClosed;
+    private volatile boolean closeWhenFlushed;
+    // handshake bookkeeping, loop thread only
+    private long handshakeStart;
+    private long handshakeStartMs;
+    private ScheduledFuture<?> handshakeDeadline;
+    private boolean tasksRunning;
+    private boolean rejected; // sent something the dispatcher choked on, we're just flushing the error and closing
+
+    NioConnection(SocketChannel channel, SSLEngine engine, EventLoop loop, PacketDispatcher dispatcher,
+                  HandshakeExecutor handshakes, ServerConfig config) {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.dispatcher = dispatcher;
+        this.handshakes = handshakes;
+        this.flushBytes = config.outboundFlushBytes;
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.outboundFlushDelayUs);
+        this.view = new PacketView(config.frameLimits);
+        this.remote = String.valueOf(channel.socket().getRemoteSocketAddress());
+        this.outbound = new OutboundQueue(config, remote);
+        this.session = new UserSession(this);
+        dispatcher.connected(session);
+
+        int netSize = engine.getSession().getPacketBufferSize();
+        int appSize = engine.getSession().getApplicationBufferSize();
+        this.netIn = ByteBuffer.allocate(netSize);
+        this.netOut = ByteBuffer.allocate(netSize);
+        this.appIn = ByteBuffer.allocate(appSize);
+    }
+
+    // called on the loop thread once the channel is handed over by the acceptor
+    void register() throws IOException {
+        key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+        handshakeStart = System.nanoTime();
+        handshakeStartMs = System.currentTimeMillis();
+        handshakeDeadline = handshakes.deadline(() -> loop.execute(() -> {
+            if (handshakeDone || closed.get()) return;
+            handshakes.timedOut();
+            System.err.println("handshake timed out " + remote);
+            closeNow();
+        }));
+        engine.beginHandshake();
+        pump();
+    }
+
+    // selector says the channel is readable and/or writable
+    void onReady(int ops) {
+        try {
+            if ((ops & SelectionKey.OP_READ) != 0) {
+                int n = channel.read(netIn);
+                if (n < 0) {
+                    inboundClosed = true;
+                }
+            }
+            pump();
+            if (inboundClosed) closeNow();
+        } catch (FrameTooLargeException e) {
+            dispatcher.rejectFrame(session, e);
+            stopReading();
+        } catch (IOException e) {
+            if (!handshakeDone) {
+                handshakes.failed();
+                System.err.println("handshake failed" + e.getMessage());
+            }
+            closeNow();
+        }
+    }
+
+    // keep driving the engine until nothing moves
+    private void pump() throws IOException {
+        boolean progress = true;
+        while (progress && !closed.get()) {
+            HandshakeStatus hs = engine.getHandshakeStatus();
+            switch (hs) {
+                case NEED_TASK -> {
+                    // the heavy crypto, dont do it on the loop, we get poked again when its done
+                    if (!tasksRunning) runDelegatedTasks();
+                    progress = false;
+                }
+                case NEED_WRAP -> progress = wrap(EMPTY);
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> progress = unwrap();
+                default -> { // NOT_HANDSHAKING / FINISHED
+                    if (!handshakeDone) {
+                        handshakeDone = true;
+                        handshakeDeadline.cancel(false);
+                        handshakes.succeeded(handshakeStart);
+                        TlsSessions.record(engine.getSession(), handshakeStartMs);
+                        System.out.printf("client authenticated successfully :) %s\n", remote);
+                    }
+                    progress = wrapOutbound() | unwrap();
+                }
+            }
+        }
+        boolean flushed = flush();
+        if (closeWhenFlushed && flushed && batchHead == batchTail && outbound.isEmpty()) {
+            closeNow();
+            return;
+        }
+        updateInterest();
+    }
+
+    private void runDelegatedTasks() {
+        tasksRunning = true;
+        boolean queued = handshakes.submit(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) task.run();
+            loop.execute(() -> {
+                tasksRunning = false;
+                try {
+                    pump();
+                } catch (IOException e) {
+                    handshakes.failed();
+                    System.err.println("handshake failed" + e.getMessage());
+                    closeNow();
+                }
+            });
+        });
+        if (!queued) {
+            // handshake pool is swamped, shed this client
+            System.err.println("handshake queue full, dropping " + remote);
+            loop.execute(this::closeNow);
+        }
+    }
+
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult r;
+        try {
+            r = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+
+        switch (r.getStatus()) {
+            case BUFFER_OVERFLOW -> {
+                // not enough room for a decrypted record, make space (keeping any half frame we have)
+                appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+            }
+            case BUFFER_UNDERFLOW -> {
+                // need more bytes off the wire, make sure a whole record can fit
+                int need = engine.getSession().getPacketBufferSize();
+                if (netIn.capacity() < need) netIn = grow(netIn, need - netIn.remaining());
+                return false;
+            }
+            case CLOSED -> {
+                inboundClosed = true;
+                return false;
+            }
+            default -> {
+            }
+        }
+
+        if (r.bytesProduced() > 0) deliver();
+        return r.bytesConsumed() > 0 || r.bytesProduced() > 0;
+    }
+
+    // the error goes out and then we close, nothing more gets read or handled
+    private void stopReading() {
+        if (key != null && key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    // turn whatever decrypted bytes we have into packets and hand them to the dispatcher
+    private void deliver() throws IOException {
+        appIn.flip();
+        try {
+            // view points straight into appIn, only compacted once we are done with it
+            while (!closed.get() && !rejected && view.decode(appIn)) {
+                try {
+                    dispatcher.handle(session, view);
+                } catch (RuntimeException e) {
+                    // caught here rather than left to EventLoop, which would leave them connected and skip its tasks
+                    rejected = true;
+                    dispatcher.rejectPacket(session, e);
+                    stopReading();
+                }
+            }
+        } finally {
+            appIn.compact();
+        }
+        // a half frame just stays in appIn, if it needs more room unwrap overflows and we grow then,
+        // so the buffer only gets as big as what the client has actually sent (and limits already checked the header)
+    }
+
+    // wrap queued frames into tls records, packing up to flushBytes of them into each one
+    private boolean wrapOutbound() throws IOException {
+        boolean progress = false;
+        while (true) {
+            fillBatch();
+            if (batchHead == batchTail) break;
+            int before = bytesLeftInBatch();
+            if (!wrap(batchBufs, batchHead, batchTail - batchHead)) break; // socket is backed up, try again when writable
+            progress = true;
+            if (bytesLeftInBatch() != before) RECORDS.increment();
+            while (batchHead < batchTail && !batchBufs[batchHead].hasRemaining()) {
+                release(batchHead++);
+                FRAMES.increment();
+            }
+        }
+        return progress;
+    }
+
+    // slide any half wrapped frames to the front and top the batch up from the queue
+    private void fillBatch() {
+        int n = batchTail - batchHead;
+        if (batchHead > 0) {
+            System.arraycopy(batch, batchHead, batch, 0, n);
+            System.arraycopy(batchBufs, batchHead, batchBufs, 0, n);
+            for (int i = n; i < batchTail; i++) {
+                batch[i] = null;
+                batchBufs[i] = null;
+            }
+            batchHead = 0;
+            batchTail = n;
+        }
+        int bytes = bytesLeftInBatch();
+        while (batchTail < MAX_BATCH && bytes < flushBytes) {
+            Frame f = outbound.poll();
+            if (f == null) break;
+            batch[batchTail] = f;
+            batchBufs[batchTail] = f.buffer();
+            batchTail++;
+            bytes += f.length();
+        }
+    }
+
+    private int bytesLeftInBatch() {
+        int bytes = 0;
+        for (int i = batchHead; i < batchTail; i++) bytes += batchBufs[i].remaining();
+        return bytes;
+    }
+
+    private void release(int i) {
+        batch[i].release();
+        batch[i] = null;
+        batchBufs[i] = null;
+    }
+
+    private boolean wrap(ByteBuffer[] srcs) throws IOException {
+        return wrap(srcs, 0, srcs.length);
+    }
+
+    private boolean wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        SSLEngineResult r = engine.wrap(srcs, offset, length, netOut);
+        switch (r.getStatus()) {
+            case BUFFER_OVERFLOW -> {
+                // push what we have to the socket, if it wont take it wait for OP_WRITE
+                if (!flush()) return false;
+                if (netOut.remaining() < engine.getSession().getPacketBufferSize()) {
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                }
+                return true;
+            }
+            case CLOSED -> {
+                return false;
+            }
+            default -> {
+                return r.bytesConsumed() > 0 || r.bytesProduced() > 0;
+            }
+        }
+    }
+
+    // write netOut to the channel, true if it all went
+    private boolean flush() throws IOException {
+        if (netOut.position() == 0) return true;
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private void updateInterest() {
+        if (key == null || !key.isValid()) return;
+        int read = closeWhenFlushed ? 0 : SelectionKey.OP_READ;
+        boolean wantWrite = netOut.position() > 0 || (handshakeDone && (batchHead < batchTail || !outbound.isEmpty()));
+        key.interestOps(wantWrite ? read | SelectionKey.OP_WRITE : read);
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int extra) {
+        ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() + extra);
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (closed.get()) throw new IOException("connection closed");
+        if (!outbound.offer(frame)) {
+            System.err.println("dropping slow client " + remote + ", outbound queue full");
+            close();
+            throw new IOException("outbound queue full");
+        }
+        // one flush task per burst, not per frame, and with a flush delay the burst gets a bit longer to build up
+        if (flushScheduled.compareAndSet(false, true)) {
+            Runnable flush = () -> {
+                flushScheduled.set(false);
+                try {
+                    pump();
+                } catch (IOException e) {
+                    closeNow();
+                }
+            };
+            if (flushDelayNanos > 0) loop.schedule(flush, flushDelayNanos);
+            else loop.execute(flush);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (loop.inLoop()) closeNow();
+        else loop.execute(this::closeNow);
+    }
+
+    @Override
+    public void flushAndClose() {
+        closeWhenFlushed = true;
+        loop.execute(() -> {
+            try {
+                pump();
+            } catch (IOException e) {
+                closeNow();
+            }
+        });
+    }
+
+    // loop thread only
+    void closeNow() {
+        if (!closed.compareAndSet(false, true)) return;
+        if (handshakeDeadline != null) handshakeDeadline.cancel(false);
+        try {
+            // best effort close_notify
+            engine.closeOutbound();
+            wrap(EMPTY);
+            flush();
+        } catch (IOException ignored) {
+        }
+        try {
+            engine.closeInbound();
+        } catch (SSLException ignored) {
+            // client hung up without close_notify, nothing we can do
+        }
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        outbound.clear();
+        for (int i = batchHead; i < batchTail; i++) release(i);
+        batchHead = batchTail = 0;
+        dispatcher.disconnected(session);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public int queuedFrames() {
+        return outbound.size();
+    }
+
+    @Override
+    public String remoteAddress() {
+        return remote;
+    }
+
+    @Override
+    public boolean onEventLoop() {
+        return true;
+    }
+}
@@ -0,0 +1,97 @@
+package grouph.core;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// nio transport, instead of a thread per client we have a handful of EventLoops each juggling lots of clients
+// the thread calling run() does the accepting and deals new channels out round robin
+final class NioServer {
+    private final SSLContext sslContext;
+    private final ServerConfig config;
+    private final PacketDispatcher dispatcher;
+    private final HandshakeExecutor handshakes;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    NioServer(SSLContext sslContext, ServerConfig config, PacketDispatcher dispatcher,
+              HandshakeExecutor handshakes) throws IOException {
+        this.sslContext = sslContext;
+        this.config = config;
+        this.dispatcher = dispatcher;
+        this.handshakes = handshakes;
+        this.loops = new EventLoop[config.eventLoops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+    }
+
+    // blocks accepting until stop()
+    void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.port));
+        for (EventLoop loop : loops) loop.start();
+        running = true;
+
+        System.out.printf(
+            """
+            server started on port %d (nio, %d event loops)
+            waiting for client connection
+            """, config.port, loops.length
+        );
+
+        int next = 0;
+        while (running) {
+            SocketChannel ch;
+            try {
+                ch = serverChannel.accept();
+            } catch (IOException e) {
+                if (running) System.err.println("io error: " + e.getMessage());
+                continue;
+            }
+            System.out.printf("client connected from: %s\n", ch.socket().getInetAddress());
+
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+
+                SSLEngine engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.setNeedClientAuth(true); // mTLS enforced
+
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+
+                NioConnection conn = new NioConnection(ch, engine, loop, dispatcher, handshakes, config);
+                loop.execute(() -> {
+                    try {
+                        conn.register();
+                    } catch (IOException e) {
+                        System.err.println("handshake failed" + e.getMessage());
+                        conn.closeNow();
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("io error: " + e.getMessage());
+                try {
+                    ch.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error stopping server: " + e.getMessage());
+        }
+        for (EventLoop loop : loops) loop.shutdown();
+    }
+}
@@ -0,0 +1,177 @@
+package grouph.core;
+
+import proto.Frame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// frames waiting to go out to one client
+// whoever sends (a broadcast, a reply) only drops the frame in here and moves on,
+// a writer (pool task for blocking sockets, the event loop for nio) drains it onto the wire
+// its bounded so a client that stops reading cant make us buffer forever, what happens when
+// its full is up to the Overflow policy
+final class OutboundQueue {
+    // across every queue, so we can see the whole server at a glance
+    private static final LongAdder QUEUED = new LongAdder();
+    private static final AtomicLong MAX_DEPTH = new AtomicLong();
+    private static final LongAdder DROPPED = Metrics.counter("outbound.dropped");
+    private static final LongAdder SLOW_DISCONNECTS = Metrics.counter("outbound.slowConsumerDisconnects");
+    // every open connection's queue, so the report can say which clients are the ones falling behind
+    private static final Set<OutboundQueue> LIVE = ConcurrentHashMap.newKeySet();
+    private static final int DEEPEST = 5;
+
+    static {
+        Metrics.gauge("outbound.queued", QUEUED::sum);
+        Metrics.gauge("outbound.maxDepth", MAX_DEPTH::get);
+        Metrics.detail("outbound.deepest", () -> deepest(DEEPEST));
+    }
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    // ReentrantLock so a virtual thread waiting here doesnt pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final ServerConfig.Overflow overflow;
+    private final String owner; // remote address, for the report
+    private int highWater;
+
+    OutboundQueue(ServerConfig config, String owner) {
+        this.capacity = config.outboundCapacity;
+        this.overflow = config.outboundOverflow;
+        this.owner = owner;
+        LIVE.add(this);
+    }
+
+    // queue a frame (retaining it), false means the client is too slow and the caller should disconnect them
+    boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (frames.size() >= capacity) {
+                if (overflow == ServerConfig.Overflow.DISCONNECT) {
+                    SLOW_DISCONNECTS.increment();
+                    return false;
+                }
+                // DROP_OLDEST, they miss the oldest thing they havent read yet
+                frames.pollFirst().release();
+                QUEUED.decrement();
+                DROPPED.increment();
+            }
+            frames.addLast(frame.retain());
+            QUEUED.increment();
+            notEmpty.signal(); // a writer might be lingering for more to batch
+            if (frames.size() > highWater) {
+                highWater = frames.size();
+                MAX_DEPTH.accumulateAndGet(highWater, Math::max);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // next frame to write or null if we are caught up, caller releases it once written
+    Frame poll() {
+        lock.lock();
+        try {
+            Frame f = frames.pollFirst();
+            if (f != null) QUEUED.decrement();
+            return f;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // like poll() but waits up to nanos for something to show up, used by writers lingering to fill a batch
+    Frame poll(long nanos) {
+        lock.lock();
+        try {
+            while (frames.isEmpty()) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            QUEUED.decrement();
+            return frames.pollFirst();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // deepest this queue has been, handy for spotting the slow reader in a room
+    int highWater() {
+        lock.lock();
+        try {
+            return highWater;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // connection is gone, throw away whatever was left
+    void clear() {
+        LIVE.remove(this);
+        lock.lock();
+        try {
+            QUEUED.add(-frames.size());
+            Frame f;
+            while ((f = frames.pollFirst()) != null) f.release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the n open queues with the most waiting in them (then the deepest theyve been),
+    // as "owner depth/highWater" so the report shows who is behind and not just that someone is
+    static String deepest(int n) {
+        List<Depth> all = new ArrayList<>();
+        for (OutboundQueue q : LIVE) {
+            q.lock.lock();
+            try {
+                if (q.highWater > 0) all.add(new Depth(q.owner, q.frames.size(), q.highWater));
+            } finally {
+                q.lock.unlock();
+            }
+        }
+        all.sort(Comparator.comparingInt((Depth d) -> d.depth).thenComparingInt(d -> d.highWater).reversed());
+        StringJoiner out = new StringJoiner(", ", "[", "]");
+        for (Depth d : all.subList(0, Math.min(n, all.size()))) out.add(d.owner + " " + d.depth + "/" + d.highWater);
+        return out.toString();
+    }
+
+    // one queue as deepest() saw it
+    private static final class Depth {
+        final String owner;
+        final int depth;
+        final int highWater;
+
+        Depth(String owner, int depth, int highWater) {
+            this.owner = owner;
+            this.depth = depth;
+            this.highWater = highWater;
+        }
+    }
+}
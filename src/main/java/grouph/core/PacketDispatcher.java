@@ -0,0 +1,268 @@
+package grouph.core;
+
+import proto.Op;
+import proto.Packet;
+import proto.FrameTooLargeException;
+import proto.PacketView;
+import proto.Packets;
+import proto.T;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+// the opcode logic, pulled out of ClientHandler so both the blocking and nio transports can share it
+// one instance is shared by every connection, anything per client lives on the UserSession
+public final class PacketDispatcher {
+    // GET_LOGS paging, how many messages when the client doesnt say and the most they can ask for
+    static final int DEFAULT_PAGE = 50;
+    static final int MAX_PAGE = 500;
+    // keep each GET_LOGS_ACK well inside what a client will accept in one frame
+    static final int MAX_ACK_BYTES = 60 * 1024;
+
+    private final RoomRegistry registry;
+    private final ServerBus bus;
+    private final LogWriter logs;
+    private final IdleMonitor idle;
+    private final RateLimits limits;
+    private final HistoryReads history; // GET_LOGS for event loop clients
+    private final LongAdder tooLarge = Metrics.counter("frames.tooLarge");
+    private final LongAdder malformed = Metrics.counter("frames.malformed");
+
+    PacketDispatcher(RoomRegistry registry, ServerBus bus, LogWriter logs, IdleMonitor idle, RateLimits limits,
+                     HistoryReads history) {
+        this.registry = registry;
+        this.bus = bus;
+        this.logs = logs;
+        this.idle = idle;
+        this.limits = limits;
+        this.history = history;
+    }
+
+    // new client, from here on they have to keep talking (or heartbeating) to stay connected
+    public void connected(UserSession session) {
+        idle.track(session);
+    }
+
+    // handle one packet from a client, replies go straight back through the session
+    // pkt points into the connections read buffer so dont hang on to it past this call
+    public void handle(UserSession session, PacketView pkt) throws IOException {
+        // update last time client was seen or sent heartbeat
+        session.lastSeenMs.set(System.currentTimeMillis());
+
+        switch (pkt.opcode) {
+            case Op.HEARTBEAT -> {
+                session.send(Packets.heartbeatAck(System.currentTimeMillis()));
+            }
+            case Op.CREATE_ROOM -> {
+                if (!limits.allow(session, Op.CREATE_ROOM)) {
+                    session.send(Packets.error(429, "creating rooms too fast, slow down"));
+                    break;
+                }
+                Room room = registry.create(); // fresh code from the pool
+                if (room == null) {
+                    session.send(Packets.error(503, "no room codes left"));
+                    break;
+                }
+                session.send(Packets.createRoomAck(room.roomId, room.roomCode)); // acknowledge
+            }
+            case Op.JOIN_ROOM -> {
+                if (!limits.allow(session, Op.JOIN_ROOM)) {
+                    session.send(Packets.error(429, "joining too fast, slow down"));
+                    break;
+                }
+                String code = pkt.getStr(T.ROOM_CODE);
+                String username = pkt.getStr(T.USERNAME);
+
+                if (username != null && !username.isEmpty()) {
+                    session.username = username;
+                }
+
+                Room room = registry.getByCode(code);
+                if (room == null) {
+                    session.send(Packets.error(404, "room not found"));
+                    break;
+                }
+                if (!limits.allow(room, Op.JOIN_ROOM)) {
+                    limits.giveBack(session, Op.JOIN_ROOM); // the room said no, not them
+                    session.send(Packets.error(429, "room is busy, try again"));
+                    break;
+                }
+
+                if (room.roomId.equals(session.roomId)) { // already there
+                    session.send(Packets.joinRoomAck(room.roomId, room.roomCode));
+                    break;
+                }
+                // ack then catch them up on what was just said, from memory, GET_LOGS is there for anything older
+                UserSession[] others = room.admit(session, () -> attachToRoom(session, room),
+                    Packets.joinRoomAck(room.roomId, room.roomCode));
+                if (others == null) { // emptied and closed under us
+                    session.send(Packets.error(404, "room not found"));
+                    break;
+                }
+                bus.userJoined(room, others, session.username == null ? "system" : session.username);
+            }
+            case Op.CHAT_SEND -> {
+                if (session.roomId == null) { // user must be in room to send message
+                    session.send(Packets.error(400, "not in room"));
+                    break;
+                }
+                if (!Packets.validateContentLen(pkt)) {
+                    session.send(Packets.error(400, "bad content length"));
+                    break;
+                }
+                if (!limits.allow(session, Op.CHAT_SEND)) {
+                    session.send(Packets.error(429, "sending too fast, slow down"));
+                    break;
+                }
+
+                String message = pkt.getStr(T.MESSAGE); // only string we make for a chat
+                Room r = registry.getById(session.roomId);
+                if (r == null) { // closed under us
+                    session.send(Packets.error(404, "room not found"));
+                    break;
+                }
+                if (!limits.allow(r, Op.CHAT_SEND)) {
+                    limits.giveBack(session, Op.CHAT_SEND);
+                    session.send(Packets.error(429, "room is busy, slow down"));
+                    break;
+                }
+                // persistence happens behind the broadcast, if it cant keep up the sender has to back off
+                if (!logs.submit(r, session.username, message, !session.conn.onEventLoop())) {
+                    session.send(Packets.error(503, "server busy, try again"));
+                    break;
+                }
+
+                // if no username just use anon
+                bus.chat(r, session.username == null ? "anon" : session.username, message);
+            }
+            case Op.GET_LOGS -> {
+                if (session.roomId == null) {
+                    session.send(Packets.error(400, "not in room"));
+                    break;
+                }
+                Room r = registry.getById(session.roomId);
+                if (r == null) {
+                    session.send(Packets.error(404, "room not found"));
+                    break;
+                }
+                long cursor = pkt.getU64(T.CURSOR, ChatLog.END);
+                long before = pkt.getU64(T.TIMESTAMPMS, -1);
+                long limit = pkt.getU32(T.LIMIT, DEFAULT_PAGE);
+                int pageSize = limit <= 0 ? DEFAULT_PAGE : (int) Math.min(limit, MAX_PAGE);
+                if (!session.conn.onEventLoop()) {
+                    sendHistory(session, r, cursor, before, pageSize);
+                } else if (!history.submit(session, () -> readHistory(session, r, cursor, before, pageSize))) {
+                    session.send(Packets.error(503, "server busy, try again"));
+                }
+            }
+            case Op.SET_USERNAME -> {
+                String username = pkt.getStr(T.USERNAME);
+                if (username == null) {
+                    session.send(Packets.error(400, "missing username"));
+                    break;
+                }
+                session.username = username;
+                session.send(Packets.setUsernameAck(username));
+            }
+            default -> {
+                session.send(Packets.error(400, "unknown opcode"));
+            }
+        }
+    }
+
+    // on a HistoryReads worker, errors go back to the client instead of up to a transport
+    private void readHistory(UserSession session, Room room, long cursor, long before, int limit) {
+        try {
+            sendHistory(session, room, cursor, before, limit);
+        } catch (Exception e) {
+            System.err.println("history read failed: " + e.getMessage());
+            try {
+                session.send(Packets.error(500, "couldnt read history"));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // the room's log is looked up here, not on the event loop, opening one can evict (and fsync) another
+    private void sendHistory(UserSession session, Room room, long cursor, long before, int limit) throws IOException {
+        DataManager dm = registry.acquireLogs(room);
+        DataManager.Page page;
+        try {
+            // no cursor but a time, start the page just before then
+            if (cursor == ChatLog.END && before >= 0) cursor = dm.cursorAt(before);
+            page = dm.readPage(cursor, limit);
+        } finally {
+            registry.releaseLogs(room, dm);
+        }
+        sendPage(session, page);
+    }
+
+    // stream a page of history back as as many GET_LOGS_ACKs as it takes, the last one says DONE
+    private void sendPage(UserSession session, DataManager.Page page) throws IOException {
+        Packet ack = Packets.getLogsAck();
+        for (DataManager.Message m : page.messages) {
+            Packet one = Packets.addLogEntry(Packets.getLogsAck(), m.timestampMs, m.sender, m.text);
+            int size = one.encodedLength() - Packet.HEADER_SIZE;
+            if (!ack.tlvs.isEmpty() && ack.encodedLength() + size > MAX_ACK_BYTES) {
+                session.send(ack);
+                ack = Packets.getLogsAck();
+            }
+            ack.tlvs.addAll(one.tlvs);
+        }
+        ack.addU32(T.DONE, 1);
+        if (page.next >= 0) ack.addU64(T.CURSOR, page.next);
+        session.send(ack);
+    }
+
+    // client sent a frame bigger than FrameLimits allows, tell them why and hang up
+    // we cant skip the payload safely so the stream is done either way
+    public void rejectFrame(UserSession session, FrameTooLargeException e) {
+        tooLarge.increment();
+        System.err.println(e.getMessage() + " from " + session.conn.remoteAddress());
+        try {
+            session.send(Packets.error(413, "frame too large"));
+        } catch (IOException ignored) {
+        }
+        session.conn.flushAndClose();
+    }
+
+    // a packet that blew up handling it, eg a U32 field that isnt 4 bytes, the client is broken or up to something
+    // same as a frame too large: tell them, hang up, and the transport handles nothing else they sent
+    public void rejectPacket(UserSession session, RuntimeException e) {
+        malformed.increment();
+        System.err.println("malformed packet from " + session.conn.remoteAddress() + ": " + e);
+        try {
+            session.send(Packets.error(400, "malformed packet"));
+        } catch (IOException ignored) {
+        }
+        session.conn.flushAndClose();
+    }
+
+    // client went away, tidy up whatever room they were in
+    public void disconnected(UserSession session) {
+        try {
+            detachFromRoom(session);
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void detachFromRoom(UserSession session) {
+        if (session.roomId == null) return;
+        Room r = registry.getById(session.roomId);
+        if (r != null) {
+            registry.leave(r, session);
+            bus.userLeft(r, session.username == null ? "system" : session.username);
+        }
+        session.roomId = null;
+    }
+
+    private boolean attachToRoom(UserSession session, Room room) {
+        if (session.roomId != null) { // remove from prev room
+            registry.leave(registry.getById(session.roomId), session);
+            session.roomId = null;
+        }
+        if (!registry.join(room, session)) return false;
+        session.roomId = room.roomId;
+        return true;
+    }
+}
@@ -0,0 +1,114 @@
+package grouph.core;
+
+import proto.Op;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// how fast a client (and everyone in a room together) may send the opcodes that cost us something,
+// a CHAT_SEND is a disk write plus a whole room's fan out, CREATE_ROOM/JOIN_ROOM churn the registry
+// past it they get a 429 and the packet is dropped, so one noisy client cant eat the node
+// token buckets, lock free: each UserSession and Room has a small array of them, one long per opcode,
+// holding when that bucket would be full again (GCRA, behaves exactly like a bucket of burst tokens
+// refilling at rate per second) so taking a token is one CAS and nothing has to go round refilling them
+// limits.<op> / limits.<op>.burst set the per session rate, limits.room.<op> / limits.room.<op>.burst the per room
+// one, <op> is the lower case name from Op and a rate of 0 means no limit
+final class RateLimits {
+    // the opcodes that get limited, a bucket array has one slot for each
+    private static final byte[] OPS = {Op.CHAT_SEND, Op.CREATE_ROOM, Op.JOIN_ROOM};
+    private static final String[] NAMES = {"chat_send", "create_room", "join_room"};
+    // per second and burst, session then room (a room doesnt exist yet to limit CREATE_ROOM on)
+    private static final int[][] SESSION_DEFAULTS = {{10, 20}, {1, 5}, {2, 10}};
+    private static final int[][] ROOM_DEFAULTS = {{200, 400}, {0, 0}, {50, 100}};
+
+    // one opcode's rate, as the gap between tokens and how far ahead of now a bucket can run
+    static final class Rate {
+        final long intervalNanos;
+        final long toleranceNanos;
+
+        Rate(int perSec, int burst) {
+            this.intervalNanos = perSec <= 0 ? 0 : 1_000_000_000L / perSec;
+            this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        }
+    }
+
+    private final Rate[] session = new Rate[OPS.length];
+    private final Rate[] room = new Rate[OPS.length];
+    private final LongAdder[] sessionThrottled = new LongAdder[OPS.length];
+    private final LongAdder[] roomThrottled = new LongAdder[OPS.length];
+
+    RateLimits(Function<String, String> source) {
+        for (int i = 0; i < OPS.length; i++) {
+            String key = "limits." + NAMES[i];
+            session[i] = new Rate(
+                Math.max(0, ServerConfig.intOf(source, key, SESSION_DEFAULTS[i][0])),
+                ServerConfig.intOf(source, key + ".burst", SESSION_DEFAULTS[i][1]));
+            String roomKey = "limits.room." + NAMES[i];
+            room[i] = new Rate(
+                Math.max(0, ServerConfig.intOf(source, roomKey, ROOM_DEFAULTS[i][0])),
+                ServerConfig.intOf(source, roomKey + ".burst", ROOM_DEFAULTS[i][1]));
+            sessionThrottled[i] = Metrics.counter("throttled." + NAMES[i]);
+            roomThrottled[i] = Metrics.counter("throttled.room." + NAMES[i]);
+        }
+    }
+
+    // a fresh set of buckets, all full
+    static AtomicLongArray buckets() {
+        return new AtomicLongArray(OPS.length);
+    }
+
+    // may this session send op right now, takes a token if so
+    boolean allow(UserSession s, byte op) {
+        return allow(s.limits, session, sessionThrottled, op, System.nanoTime());
+    }
+
+    // may anyone in this room send op right now, takes a token if so
+    boolean allow(Room r, byte op) {
+        return allow(r.limits, room, roomThrottled, op, System.nanoTime());
+    }
+
+    // hand back a token allow(s, op) took, for when the packet got turned away by something else (the room
+    // being busy) and the sender shouldnt pay for it
+    void giveBack(UserSession s, byte op) {
+        int slot = slot(op);
+        if (slot >= 0) giveBack(s.limits, slot, session[slot], System.nanoTime());
+    }
+
+    private static boolean allow(AtomicLongArray buckets, Rate[] rates, LongAdder[] throttled, byte op, long now) {
+        int slot = slot(op);
+        if (slot < 0 || take(buckets, slot, rates[slot], now)) return true;
+        throttled[slot].increment();
+        return false;
+    }
+
+    // 0 in a bucket means never used, ie full
+    static boolean take(AtomicLongArray buckets, int slot, Rate rate, long now) {
+        if (rate.intervalNanos == 0) return true;
+        while (true) {
+            long full = buckets.get(slot);
+            long from = full == 0 || full - now < 0 ? now : full; // a bucket cant be fuller than full
+            if (from - now > rate.toleranceNanos) return false; // empty
+            if (buckets.compareAndSet(slot, full, from + rate.intervalNanos)) return true;
+        }
+    }
+
+    // undo one take, a bucket cant end up fuller than full
+    static void giveBack(AtomicLongArray buckets, int slot, Rate rate, long now) {
+        if (rate.intervalNanos == 0) return;
+        while (true) {
+            long full = buckets.get(slot);
+            if (full == 0 || full - now <= 0) return; // already full
+            long back = full - rate.intervalNanos;
+            if (back - now < 0) back = now;
+            if (buckets.compareAndSet(slot, full, back)) return;
+        }
+    }
+
+    static int slot(byte op) {
+        for (int i = 0; i < OPS.length; i++) {
+            if (OPS[i] == op) return i;
+        }
+        return -1;
+    }
+}
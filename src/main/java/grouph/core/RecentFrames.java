@@ -0,0 +1,111 @@
+package grouph.core;
+
+import proto.Frame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// the last few CHAT_BROADCAST frames a room sent, so someone joining can be caught up straight from memory,
+// no disk, no decrypting, not even encoding since its the same frames everyone else already got
+// lock free so broadcasters never wait on each other or on a join reading it:
+//  - a broadcaster takes the next sequence number and swaps its frame into slot seq % capacity,
+//    whatever was there (the frame from capacity messages ago) gets released
+//  - on top of the count theres a byte budget, going over it lets go of the oldest frames until it fits
+//  - a reader walks the last capacity sequence numbers and keeps the slots that still hold exactly that one
+final class RecentFrames {
+    static final int DEFAULT_FRAMES = 50;
+    static final long DEFAULT_BYTES = 256 * 1024;
+
+    private static final LongAdder BYTES = new LongAdder();
+    static {
+        Metrics.gauge("rooms.backfillBytes", BYTES::sum);
+    }
+
+    private static final class Slot {
+        final long seq;
+        final Frame frame;
+
+        Slot(long seq, Frame frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    private final AtomicReferenceArray<Slot> slots;
+    private final int capacity;
+    private final long maxBytes;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    RecentFrames(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    // remember frame (retaining it) as the newest one
+    void add(Frame frame) {
+        if (capacity == 0 || frame.length() > maxBytes) return;
+        frame.retain();
+        long seq = next.getAndIncrement();
+        Slot mine = new Slot(seq, frame);
+        int i = (int) (seq % capacity);
+        while (true) {
+            Slot cur = slots.get(i);
+            if (cur != null && cur.seq > seq) {
+                // we stalled long enough for someone a whole lap ahead to get here first, ours is already too old
+                frame.release();
+                return;
+            }
+            if (slots.compareAndSet(i, cur, mine)) {
+                grow(frame.length());
+                if (cur != null) drop(cur);
+                break;
+            }
+        }
+        // over budget, let go from the oldest end until we fit
+        for (long s = Math.max(0, seq - capacity + 1); bytes.get() > maxBytes && s < seq; s++) {
+            int j = (int) (s % capacity);
+            Slot old = slots.get(j);
+            if (old != null && old.seq == s && slots.compareAndSet(j, old, null)) drop(old);
+        }
+    }
+
+    // the frames we have, oldest first, each retained for the caller to release
+    // a frame thats being replaced while we look might be skipped, never handed out twice or out of order
+    List<Frame> snapshot() {
+        long end = next.get();
+        List<Frame> out = new ArrayList<>(capacity);
+        for (long s = Math.max(0, end - capacity); s < end; s++) {
+            Slot slot = slots.get((int) (s % capacity));
+            if (slot != null && slot.seq == s && slot.frame.tryRetain()) out.add(slot.frame);
+        }
+        return out;
+    }
+
+    // room is gone, give the frames back (pooled ones return to their pool)
+    void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            Slot old = slots.getAndSet(i, null);
+            if (old != null) drop(old);
+        }
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    private void grow(int n) {
+        bytes.addAndGet(n);
+        BYTES.add(n);
+    }
+
+    private void drop(Slot slot) {
+        bytes.addAndGet(-slot.frame.length());
+        BYTES.add(-slot.frame.length());
+        slot.frame.release();
+    }
+}
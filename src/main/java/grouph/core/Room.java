@@ -1,40 +1,156 @@
 package grouph.core;
 
+import proto.Frame;
 import proto.Packet;
 
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.util.Set;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
 
 public class Room {
     public final UUID roomId; // unique identification number for each room
     public final String roomCode; // 6 digits
-    private final Set<UserSession> users = ConcurrentHashMap.newKeySet(); // each room having a number of users
+    private static final UserSession[] NONE = new UserSession[0];
+
+    // each room having a number of users
+    // messages go out far more often than people come and go, so broadcast just walks a plain array and
+    // joining/leaving swaps in a new copy (under the room's lock so two changes cant lose each other)
+    // the array is never changed once published, its length is the member count
+    private volatile UserSession[] users = NONE;
+    private final RecentFrames recent; // last few chat broadcasts, for catching up whoever joins next
+    // chat takes the read side (any number at once), a join the write side, see admit
+    private final ReentrantReadWriteLock joins = new ReentrantReadWriteLock();
+    final AtomicLongArray limits = RateLimits.buckets(); // how fast the room as a whole may chat/be joined
+    // both only changed under the RoomRegistry stripe lock for this code (RoomLogs reads closed without it)
+    volatile boolean closed; // out of the registry, nobody else gets in
+    boolean pooledCode; // code came from the registry's pool and goes back when the room closes
+    // big rooms broadcast on the FanOut workers, null means always inline
+    private final FanOut fanOut;
+    final AtomicInteger fanOutPending = new AtomicInteger(); // batches the workers havent finished
+    volatile FanOut.Plan fanOutPlan; // the members split up by worker, rebuilt when they change
 
     // to create a room
     public Room(UUID roomId, String roomCode) {
+        this(roomId, roomCode, RecentFrames.DEFAULT_FRAMES, RecentFrames.DEFAULT_BYTES);
+    }
+
+    Room(UUID roomId, String roomCode, int backfillFrames, long backfillBytes) {
+        this(roomId, roomCode, backfillFrames, backfillBytes, null);
+    }
+
+    Room(UUID roomId, String roomCode, int backfillFrames, long backfillBytes, FanOut fanOut) {
         this.roomId = roomId;
         this.roomCode = roomCode;
+        this.recent = new RecentFrames(backfillFrames, backfillBytes);
+        this.fanOut = fanOut;
     }
 
-    public void add(UserSession u) { users.add(u); } // add user to room
-    public void remove(UserSession u) { users.remove(u); } // remove user from room
-    public boolean isEmpty() { return users.isEmpty(); } // check if we have any users in the room
+    // add user to room
+    public synchronized void add(UserSession u) {
+        UserSession[] cur = users;
+        if (indexOf(cur, u) >= 0) return;
+        UserSession[] next = Arrays.copyOf(cur, cur.length + 1);
+        next[cur.length] = u;
+        users = next;
+    }
 
-    // TODO: barebones impl, might need fixing up later
+    // remove user from room
+    public synchronized void remove(UserSession u) {
+        UserSession[] cur = users;
+        int i = indexOf(cur, u);
+        if (i < 0) return;
+        if (cur.length == 1) {
+            users = NONE;
+            return;
+        }
+        UserSession[] next = new UserSession[cur.length - 1];
+        System.arraycopy(cur, 0, next, 0, i);
+        System.arraycopy(cur, i + 1, next, i, cur.length - i - 1);
+        users = next;
+    }
+
+    private static int indexOf(UserSession[] a, UserSession u) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == u) return i;
+        }
+        return -1;
+    }
+
+    public boolean isEmpty() { return users.length == 0; } // check if we have any users in the room
+    public int size() { return users.length; }
+
+    // encode once and send to everyone
     public void broadcast(Packet pkt) {
-        byte[] bytes = pkt.toBytes();
+        Frame frame = Frame.of(pkt);
+        try {
+            broadcast(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // every member gets the same frame, no re-encoding or copying per user
+    public void broadcast(Frame frame) {
+        broadcast(users, frame); // as of when we started
+    }
+
+    // same, to the members as of some earlier point (see admit)
+    void broadcast(UserSession[] members, Frame frame) {
+        if (fanOut != null && fanOut.broadcast(this, members, frame)) return;
         // for each user in the room
-        for (UserSession u : users) {
+        for (UserSession u : members) {
             try {
-                OutputStream outputStream = u.socket.getOutputStream();
-                synchronized (outputStream) { // lock!
-                    outputStream.write(bytes);
-                    outputStream.flush();
-                }
+                u.conn.send(frame); // only queues, a slow reader cant hold up the rest of the room
             } catch (Exception ignored) { }
         }
     }
+
+    // a chat message, kept around for backfill and sent out as one step as far as a join can tell
+    // (sending only queues, so holding the read lock across it never waits on a client)
+    public void broadcastChat(Frame frame) {
+        joins.readLock().lock();
+        try {
+            recent.add(frame);
+            broadcast(frame);
+        } finally {
+            joins.readLock().unlock();
+        }
+    }
+
+    // let u in and catch them up, with chat held off meanwhile so every message reaches them exactly once:
+    // sent before they were in (so its in the backfill and they arent in its member list) or after (live only)
+    // join does the actual adding and says if it worked, then u gets ack and then the backfill, oldest first
+    // returns whoever was here before u (theyre the ones to tell about it), null if u didnt get in
+    UserSession[] admit(UserSession u, BooleanSupplier join, Packet ack) throws IOException {
+        joins.writeLock().lock();
+        try {
+            UserSession[] before = users; // joins all go through here, so nobody else gets in after this
+            if (!join.getAsBoolean()) return null;
+            u.send(ack);
+            backfill(u.conn);
+            return before;
+        } finally {
+            joins.writeLock().unlock();
+        }
+    }
+
+    // send the recent chat to someone who just joined, oldest first
+    private void backfill(Connection conn) throws IOException {
+        List<Frame> frames = recent.snapshot();
+        try {
+            for (Frame f : frames) conn.send(f);
+        } finally {
+            for (Frame f : frames) f.release();
+        }
+    }
+
+    // room is being dropped, let go of the frames it was holding
+    void clearRecent() {
+        recent.clear();
+    }
 }
@@ -0,0 +1,151 @@
+package grouph.core;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+// one long lived DataManager per active room, each holding its current log segment open
+// so saving a chat message is a single write() rather than mkdirs/exists/open/write/close
+// its an LRU capped at logs.openFiles so a server with lots of quiet rooms doesnt run out of file descriptors,
+// the least recently used room gets its file closed and reopened next time someone talks there
+// RoomRegistry closes a room's log when the room goes away
+// callers acquire() a room's DataManager and release() it when done (a writer batch, a history page):
+//  - there is only ever one open DataManager per room, its cached segment size/record count/index state
+//    would go stale if a second one appended behind its back, so a room in use is never evicted (the cap
+//    can be over for a moment) and one closed while in use is closed by whoever lets go of it last
+//  - closing means an fsync, so its always done after letting go of this lock, never while holding it
+//  - a room the registry already closed doesnt get a held open log back, see acquire
+final class RoomLogs {
+    private final LongAdder evicted = Metrics.counter("logs.evicted");
+
+    // a room's DataManager and how many are using it right now, both guarded by RoomLogs
+    private static final class Open {
+        final DataManager dm;
+        int users;
+
+        Open(DataManager dm) {
+            this.dm = dm;
+        }
+    }
+
+    private final int maxOpen;
+    private final long segmentBytes;
+    private final int indexEvery;
+    // access order, eldest entry is the room that logged least recently
+    private final LinkedHashMap<UUID, Open> open = new LinkedHashMap<>(16, 0.75f, true);
+    // out of open (room closed) but still in use, closed on their last release
+    private final Map<DataManager, Open> draining = new IdentityHashMap<>();
+
+    RoomLogs(ServerConfig config) {
+        this(config.logOpenFiles, config.logSegmentBytes, config.logIndexEvery);
+    }
+
+    RoomLogs(int maxOpen, long segmentBytes) {
+        this(maxOpen, segmentBytes, LogIndex.DEFAULT_EVERY);
+    }
+
+    RoomLogs(int maxOpen, long segmentBytes, int indexEvery) {
+        this.maxOpen = maxOpen;
+        this.segmentBytes = segmentBytes;
+        this.indexEvery = indexEvery;
+        Metrics.gauge("logs.open", this::size);
+    }
+
+    // the room's DataManager, the caller hands it back with release() once done with it
+    // a room thats already closed (messages queued just before its last member left) gets a one off that
+    // opens and closes the file per write, so they still land but nothing stays open for a dead room
+    // RoomRegistry marks a room closed before it calls close(room), so under this lock either we see
+    // closed or close() sees our users
+    DataManager acquire(Room room) {
+        List<DataManager> evict;
+        DataManager dm;
+        synchronized (this) {
+            if (room.closed) return new DataManager(room, segmentBytes, indexEvery, false);
+            Open o = open.get(room.roomId);
+            if (o == null) {
+                o = new Open(new DataManager(room, segmentBytes, indexEvery, true));
+                open.put(room.roomId, o);
+            }
+            o.users++;
+            dm = o.dm;
+            evict = evict();
+        }
+        closeAll(evict);
+        return dm;
+    }
+
+    void release(Room room, DataManager dm) {
+        List<DataManager> evict = List.of();
+        synchronized (this) {
+            Open o = open.get(room.roomId);
+            if (o != null && o.dm == dm) {
+                o.users--;
+                evict = evict();
+            } else if ((o = draining.get(dm)) != null) {
+                if (--o.users == 0) {
+                    draining.remove(dm);
+                    evict = List.of(dm);
+                }
+            }
+            // anything else was a one off from acquire, it has nothing open
+        }
+        closeAll(evict);
+    }
+
+    // holding this, least recently used rooms nobody is using until we're back under the cap
+    private List<DataManager> evict() {
+        if (open.size() <= maxOpen) return List.of();
+        List<DataManager> out = new ArrayList<>();
+        for (Iterator<Open> it = open.values().iterator(); it.hasNext() && open.size() > maxOpen; ) {
+            Open o = it.next();
+            if (o.users > 0) continue;
+            it.remove();
+            out.add(o.dm);
+            evicted.increment();
+        }
+        return out;
+    }
+
+    // room is gone, let go of its file
+    void close(Room room) {
+        close(room.roomId);
+    }
+
+    void close(UUID roomId) {
+        DataManager dm = null;
+        synchronized (this) {
+            Open o = open.remove(roomId);
+            if (o != null && o.users > 0) {
+                draining.put(o.dm, o);
+            } else if (o != null) {
+                dm = o.dm;
+            }
+        }
+        if (dm != null) dm.close();
+    }
+
+    // shutting down, whatever is still in use gets closed too (writers have stopped by now)
+    void closeAll() {
+        List<DataManager> all = new ArrayList<>();
+        synchronized (this) {
+            for (Open o : open.values()) all.add(o.dm);
+            all.addAll(draining.keySet());
+            open.clear();
+            draining.clear();
+        }
+        closeAll(all);
+    }
+
+    private static void closeAll(List<DataManager> dms) {
+        for (DataManager dm : dms) dm.close();
+    }
+
+    synchronized int size() {
+        return open.size();
+    }
+}
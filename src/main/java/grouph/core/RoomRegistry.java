@@ -1,34 +1,218 @@
 package grouph.core;
 
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 // stores multiple rooms in a thread safe way
+// the code -> room map is the one source of truth, split into STRIPES stripes by code each with its own lock,
+// so with hundreds of thousands of rooms creating/joining/leaving different rooms rarely waits on each other
+// both maps are only ever written under the stripe lock but are concurrent maps, so lookups by code or id
+// never take it (a room found that way may be closing, join checks again under the lock)
+// a room's whole lifecycle goes through its stripe lock: created, joined, and closed when the last member leaves,
+// so a join either gets in before the close (and the room stays) or finds the room gone, it cant end up
+// in a room nobody can find anymore
+// new rooms get their code from a pool of all 1M six digit codes shuffled once (SecureRandom, the code is
+// all it takes to get in so the next one shouldnt be guessable), a code goes back in when its room closes
 public final class RoomRegistry {
-    private final java.util.Map<UUID, Room> rooms = new ConcurrentHashMap<>();
-    private final java.util.Map<String, UUID> codeIndex = new ConcurrentHashMap<>();
+    static final int STRIPES = 64; // power of two
+    static final int CODES = 1_000_000;
 
-    // create room by code
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, Room> byCode = new ConcurrentHashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Map<UUID, Room> rooms = new ConcurrentHashMap<>();
+    private final CodePool codes;
+    private final RoomLogs logs; // open chat log per room, closed when the room goes
+    // how much recent chat each room keeps in memory for joins, see RecentFrames
+    private final int backfillFrames;
+    private final long backfillBytes;
+    private final FanOut fanOut; // for big rooms, null broadcasts everything inline
+
+    public RoomRegistry() {
+        this(new RoomLogs(256, ChatLog.DEFAULT_SEGMENT_BYTES));
+    }
+
+    RoomRegistry(RoomLogs logs) {
+        this(logs, RecentFrames.DEFAULT_FRAMES, RecentFrames.DEFAULT_BYTES);
+    }
+
+    RoomRegistry(RoomLogs logs, ServerConfig config, FanOut fanOut) {
+        this(logs, config.roomBackfillFrames, config.roomBackfillBytes, new SecureRandom(), fanOut);
+    }
+
+    RoomRegistry(RoomLogs logs, int backfillFrames, long backfillBytes) {
+        this(logs, backfillFrames, backfillBytes, new SecureRandom(), null);
+    }
+
+    RoomRegistry(RoomLogs logs, int backfillFrames, long backfillBytes, Random random, FanOut fanOut) {
+        this.logs = logs;
+        this.backfillFrames = backfillFrames;
+        this.backfillBytes = backfillBytes;
+        this.fanOut = fanOut;
+        this.codes = new CodePool(CODES, random);
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+    }
+
+    private Stripe stripe(String code) {
+        int h = code.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    // a new room under a code nobody else has, null if all 1M are in use
+    public Room create() {
+        // codes taken by hand with getOrCreateByCode are still in the pool, those get skipped
+        for (int tries = 0; tries < CODES; tries++) {
+            int n = codes.take();
+            if (n < 0) return null;
+            String code = String.format("%06d", n);
+            Stripe s = stripe(code);
+            s.lock.lock();
+            try {
+                if (s.byCode.containsKey(code)) {
+                    codes.giveBack(n); // its turn comes round again once that room has gone
+                    continue;
+                }
+                Room room = open(s, code);
+                room.pooledCode = true;
+                return room;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return null;
+    }
+
+    // create room by code, or the one already there
     public Room getOrCreateByCode(String code) {
-        UUID id = codeIndex.computeIfAbsent(code, c -> UUID.randomUUID());
-        return rooms.computeIfAbsent(id, uuid -> new Room(uuid, code));
+        Stripe s = stripe(code);
+        s.lock.lock();
+        try {
+            Room room = s.byCode.get(code);
+            return room != null ? room : open(s, code);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    // holding s.lock
+    private Room open(Stripe s, String code) {
+        Room room = new Room(UUID.randomUUID(), code, backfillFrames, backfillBytes, fanOut);
+        s.byCode.put(code, room);
+        rooms.put(room.roomId, room);
+        return room;
     }
 
     // get by room code
     public Room getByCode(String code) {
-        UUID id = codeIndex.get(code);
-        return id == null ? null : rooms.get(id);
+        if (code == null) return null;
+        return stripe(code).byCode.get(code);
     }
 
     // get room by id
     public Room getById(UUID id) { return rooms.get(id); }
 
+    public int size() { return rooms.size(); }
+
+    // the long lived DataManager for a room, its log file stays open between messages
+    // hand it back with releaseLogs once done, see RoomLogs
+    public DataManager acquireLogs(Room room) { return logs.acquire(room); }
+
+    public void releaseLogs(Room room, DataManager dm) { logs.release(room, dm); }
+
+    // put someone in a room, false if the room closed before they got there
+    public boolean join(Room room, UserSession u) {
+        Stripe s = stripe(room.roomCode);
+        s.lock.lock();
+        try {
+            if (room.closed) return false;
+            room.add(u);
+            return true;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    // take someone out of a room, and drop the room if they were the last one
+    public void leave(Room room, UserSession u) {
+        if (room == null) return;
+        if (close(room, u)) release(room);
+    }
+
     // check if the room given has no users if so remove
     public void removeIfEmpty(Room room) {
         if (room == null) return;
-        if (room.isEmpty()) {
+        if (close(room, null)) release(room);
+    }
+
+    // removes u (if any) and closes the room if thats left it empty, true if it did
+    private boolean close(Room room, UserSession u) {
+        Stripe s = stripe(room.roomCode);
+        s.lock.lock();
+        try {
+            if (u != null) room.remove(u);
+            if (room.closed || !room.isEmpty()) return false;
+            room.closed = true;
+            s.byCode.remove(room.roomCode);
             rooms.remove(room.roomId);
-            codeIndex.remove(room.roomCode);
+            return true;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    // outside the stripe lock, closing the log can mean an fsync
+    private void release(Room room) {
+        logs.close(room);
+        room.clearRecent();
+        if (room.pooledCode) codes.giveBack(Integer.parseInt(room.roomCode));
+    }
+
+    // every code not handed out, in a random order, as a ring: take from the head, give back at the tail
+    // built on first use so a registry that never creates a room doesnt pay for 4MB of codes
+    private static final class CodePool {
+        private final int capacity;
+        private final Random random;
+        private int[] ring;
+        private int head;
+        private int size;
+
+        CodePool(int capacity, Random random) {
+            this.capacity = capacity;
+            this.random = random;
+        }
+
+        synchronized int take() {
+            if (ring == null) fill();
+            if (size == 0) return -1;
+            int n = ring[head];
+            head = (head + 1) % capacity;
+            size--;
+            return n;
+        }
+
+        synchronized void giveBack(int n) {
+            if (ring == null) return; // never handed anything out
+            ring[(head + size) % capacity] = n;
+            size++;
+        }
+
+        private void fill() {
+            ring = new int[capacity];
+            for (int i = 0; i < capacity; i++) ring[i] = i;
+            for (int i = capacity - 1; i > 0; i--) { // fisher yates
+                int j = random.nextInt(i + 1);
+                int t = ring[i];
+                ring[i] = ring[j];
+                ring[j] = t;
+            }
+            size = capacity;
         }
     }
 }
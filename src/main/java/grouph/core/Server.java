@@ -1,12 +1,11 @@
 package grouph.core;
 
+import proto.FramePool;
+
 import javax.net.ssl.*;
 import java.io.*;
 import java.security.*;
-import java.util.Map;
 import java.util.Scanner;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.*;
 
 public class Server {
@@ -27,8 +26,6 @@ public class Server {
         }
     }
 
-    // standard port for https or tls
-    private static final int PORT = 8443;
     // path to servers private key and cert
     private static final String KEYSTORE_PATH = "stores/server-keystore.jks"; // for owen stuff
     // path to servers truststore (all trusted clients)
@@ -36,28 +33,58 @@ public class Server {
     // TODO: this is a horrible idea for prod but gotta work with what we got iykyk
     private static final String PASSWORD = getKeystorePass("stores/keystorePass.txt");
 
+    private final ServerConfig config;
+    private final HandshakeExecutor handshakes;
     private SSLServerSocket serverSocket;
+    private NioServer nioServer;
+    private RoomLogs roomLogs;
+    private LogWriter logWriter;
+    private LogRetention logRetention;
+    private IdleMonitor idleMonitor;
+    private FanOut fanOut;
+    private HistoryReads historyReads;
     // today i learned volatile is a way to mark a variable as stored in main memory
     // not just in a threads local cache
     private volatile boolean running;
 
     // idle threads (workers) on stand by ready to be given work
-    private final ExecutorService pool = Executors.newCachedThreadPool();
-
-    // thread safe impl of HashMap is ConcurrentHashMap
-    private final Map<UUID, Room> rooms = new ConcurrentHashMap<>();
-    private final Map<String, UUID> roomCodeIndex = new ConcurrentHashMap<>();
+    // or a virtual thread per client if configured
+    private final ExecutorService pool;
 
     // we start the server when constructed
     public Server() {
+        this(ServerConfig.load());
+    }
+
+    public Server(ServerConfig config) {
+        this.config = config;
+        this.pool = newClientPool(config.threads);
+        this.handshakes = new HandshakeExecutor(config);
         start();
     }
 
+    // we compile for 17 so we cant call newVirtualThreadPerTaskExecutor directly,
+    // look it up at runtime and fall back to platform threads on an older jvm
+    static ExecutorService newClientPool(ServerConfig.Threads threads) {
+        if (threads == ServerConfig.Threads.VIRTUAL) {
+            try {
+                ExecutorService vt = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+                System.out.println("running clients on virtual threads");
+                return vt;
+            } catch (ReflectiveOperationException e) {
+                System.err.println("virtual threads need java 21+, running " + Runtime.version() + ", using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
     // set up all security components for mTLS
     public void start() {
         try {
-            // TODO: figure out steps to complete and write code to complete them
             System.out.println("hello from server");
+            TlsSessions.enableTickets(config); // before anything touches tls
 
             // load servers key store, which contains servers private key and cert
             KeyStore keyStore = KeyStore.getInstance("JKS");
@@ -94,49 +121,38 @@ public class Server {
             );
             System.out.println("created SSLContext");
 
-            // here we create our SSLServerSocket, the important bit
-            SSLServerSocketFactory factory = sslContext.getServerSocketFactory();
-            serverSocket = (SSLServerSocket) factory.createServerSocket(PORT);
-
-            // the line that makes it "mutual TLS"
-            // without this line only the server would be authenticated (TLS not mTLS)
-            // with this both server and client must prove identity
-            serverSocket.setNeedClientAuth(true);
+            // let reconnecting clients resume instead of doing the whole mTLS dance again
+            TlsSessions.configure(sslContext, config);
 
             // set up room registery
-            final RoomRegistry roomRegistry = new RoomRegistry();
-            final ServerBus serverBus = new ServerBus(); // broadcasting
+            DataManager.mapSegments(config.logMmap);
+            DataManager.parallelDecrypt(config.logDecryptThreads, config.logDecryptParallelThreshold);
+            roomLogs = new RoomLogs(config);
+            // big rooms broadcast across these workers rather than on the senders thread
+            fanOut = config.roomFanOutThreshold > 0 ? new FanOut(config) : null;
+            final RoomRegistry roomRegistry = new RoomRegistry(roomLogs, config, fanOut);
+            final ServerBus serverBus = new ServerBus( // broadcasting
+                config.framesDirect ? new FramePool(config.framePoolPerClass) : null
+            );
+            logWriter = new LogWriter(roomRegistry, config);
+            // drops clients that stop talking, eg half open connections whose other end is long gone
+            idleMonitor = new IdleMonitor(config);
+            idleMonitor.start();
+            // history pages for nio clients get read here rather than on an event loop
+            historyReads = new HistoryReads(config);
+            final PacketDispatcher dispatcher = new PacketDispatcher(roomRegistry, serverBus, logWriter, idleMonitor,
+                config.rateLimits, historyReads);
+            logRetention = new LogRetention(roomRegistry, roomLogs, config);
+            logRetention.start();
 
-            // TODO: heartbeat monitor
+            Metrics.report(config.metricsIntervalSec);
 
             running = true;
-            System.out.printf( // programming java for 3 years and only know i realise printf is a thing
-                """
-                server started on port %d
-                waiting for client connection
-                """, PORT
-            );
-
-            while(running) {
-                try {
-                    // accept client connect
-                    // connect fails on invalid certificate
-                    assert serverSocket != null; // avoid NullPointerException
-                    SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                    System.out.printf("client connected from: %s\n", clientSocket.getInetAddress());
-
-                    // force TLS handshake
-                    clientSocket.setUseClientMode(false);
-                    clientSocket.startHandshake(); // mTLS enforced
-                    System.out.println("client authenticated successfully :)");
-
-                    // submit a new task to thread pool
-                    pool.submit(new ClientHandler(clientSocket, roomRegistry, serverBus));
-                } catch (SSLHandshakeException e) {
-                    System.err.println("handshake failed" + e.getMessage());
-                } catch (IOException e) {
-                    System.err.println("io error: " + e.getMessage());
-                }
+            if (config.transport == ServerConfig.Transport.NIO) {
+                nioServer = new NioServer(sslContext, config, dispatcher, handshakes);
+                nioServer.run();
+            } else {
+                runBlocking(sslContext, dispatcher);
             }
         } catch (Exception e) {
             System.err.println("failed to start server: " + e.getMessage());
@@ -144,8 +160,100 @@ public class Server {
         }
     }
 
+    // the original transport, accept on this thread and give every client its own thread
+    private void runBlocking(SSLContext sslContext, PacketDispatcher dispatcher) throws IOException {
+        // here we create our SSLServerSocket, the important bit
+        SSLServerSocketFactory factory = sslContext.getServerSocketFactory();
+        serverSocket = (SSLServerSocket) factory.createServerSocket(config.port);
+
+        // the line that makes it "mutual TLS"
+        // without this line only the server would be authenticated (TLS not mTLS)
+        // with this both server and client must prove identity
+        serverSocket.setNeedClientAuth(true);
+
+        System.out.printf( // programming java for 3 years and only know i realise printf is a thing
+            """
+            server started on port %d
+            waiting for client connection
+            """, config.port
+        );
+
+        while(running) {
+            try {
+                // accept client connect
+                // connect fails on invalid certificate
+                assert serverSocket != null; // avoid NullPointerException
+                SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
+                System.out.printf("client connected from: %s\n", clientSocket.getInetAddress());
+
+                // handshake on the handshake pool so one slow client cant hold up the accept loop
+                // if that pool is backed up we shed the connection, the client can retry
+                if (!handshakes.submit(() -> handshake(clientSocket, dispatcher))) {
+                    System.err.println("handshake queue full, dropping " + clientSocket.getInetAddress());
+                    closeQuietly(clientSocket);
+                }
+            } catch (IOException e) {
+                if (running) System.err.println("io error: " + e.getMessage());
+            }
+        }
+    }
+
+    // runs on the handshake pool, once the client has proven who they are they get a ClientHandler
+    private void handshake(SSLSocket clientSocket, PacketDispatcher dispatcher) {
+        long start = System.nanoTime();
+        long startMs = System.currentTimeMillis();
+        // soTimeout only covers a single read, the deadline covers a client that dribbles bytes forever
+        ScheduledFuture<?> deadline = handshakes.deadline(() -> {
+            handshakes.timedOut();
+            closeQuietly(clientSocket);
+        });
+        try {
+            // force TLS handshake
+            clientSocket.setUseClientMode(false);
+            clientSocket.setSoTimeout((int) handshakes.timeoutMs());
+            clientSocket.startHandshake(); // mTLS enforced
+            clientSocket.setSoTimeout(0); // back to blocking forever for the handler
+        } catch (IOException e) {
+            if (deadline.cancel(false)) handshakes.failed(); // else the deadline already counted it
+            System.err.println("handshake failed" + e.getMessage());
+            closeQuietly(clientSocket);
+            return;
+        }
+        if (!deadline.cancel(false)) return; // timed out right at the finish line, socket is already closed
+        handshakes.succeeded(start);
+        TlsSessions.record(clientSocket.getSession(), startMs);
+        System.out.println("client authenticated successfully :)");
+
+        try {
+            // submit a new task to thread pool
+            pool.submit(new ClientHandler(clientSocket, dispatcher, config, pool));
+        } catch (IOException | RejectedExecutionException e) {
+            System.err.println("io error: " + e.getMessage());
+            closeQuietly(clientSocket);
+        }
+    }
+
+    private static void closeQuietly(SSLSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
     public void stop() {
         running = false;
+        pool.shutdown(); // no new handlers, existing ones finish when their client goes
+        handshakes.shutdown();
+        if (nioServer != null) {
+            nioServer.stop();
+            System.out.println("Server stopped");
+        }
+        if (idleMonitor != null) idleMonitor.shutdown();
+        if (fanOut != null) fanOut.shutdown();
+        if (historyReads != null) historyReads.shutdown();
+        if (logRetention != null) logRetention.shutdown();
+        if (logWriter != null) logWriter.shutdown(); // everything queued makes it to disk
+        if (roomLogs != null) roomLogs.closeAll();
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -1,22 +1,54 @@
 package grouph.core;
 
+import proto.Frame;
+import proto.FramePool;
 import proto.Packets;
 import proto.Packet;
 
-import java.util.UUID;
-
 // for system messages
+// each message is encoded exactly once into a Frame that the whole room shares
 public final class ServerBus {
-    public void userJoined(Room room, String username) {
-        Packet p = Packets.userJoined(username);
-        room.broadcast(p);
+    private final FramePool pool; // null means plain heap frames
+
+    public ServerBus() {
+        this(null);
+    }
+
+    public ServerBus(FramePool pool) {
+        this.pool = pool;
+    }
+
+    // to whoever was there before them, the one joining already knows
+    public void userJoined(Room room, UserSession[] others, String username) {
+        Frame frame = encode(Packets.userJoined(username));
+        try {
+            room.broadcast(others, frame);
+        } finally {
+            frame.release();
+        }
     }
     public void userLeft(Room room, String username) {
-        Packet p = Packets.userLeft(username);
-        room.broadcast(p);
+        send(room, Packets.userLeft(username));
     }
     public void chat(Room room, String username, String message) {
-        Packet p = Packets.chatBroadcast(username, message);
-        room.broadcast(p);
+        Frame frame = encode(Packets.chatBroadcast(username, message));
+        try {
+            room.broadcastChat(frame); // the room keeps it for backfilling joins
+        } finally {
+            frame.release();
+        }
+    }
+
+    private Frame encode(Packet p) {
+        return pool == null ? Frame.of(p) : pool.encode(p);
+    }
+
+    private void send(Room room, Packet p) {
+        Frame frame = encode(p);
+        try {
+            room.broadcast(frame);
+        } finally {
+            frame.release(); // recipients queues hold their own references
+        }
     }
 }
@@ -0,0 +1,250 @@
+package grouph.core;
+
+import proto.FrameLimits;
+import proto.Op;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Field;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+// all the tunable knobs for the server live here
+// each value is looked up as a -Dgrouph.<key> system property first, then as a GROUPH_<KEY> env var
+// (dots become underscores), and if neither is set we use the default
+// eg -Dgrouph.transport=nio or GROUPH_TRANSPORT=nio
+public final class ServerConfig {
+
+    // how we move bytes between clients and the server
+    public enum Transport {
+        BLOCKING, // one thread per connection blocking on SSLSocket streams (the original)
+        NIO       // a few selector event loops driving SSLEngines
+    }
+
+    // what the blocking transport runs each ClientHandler on
+    public enum Threads {
+        PLATFORM, // cached pool of normal os threads
+        VIRTUAL   // one virtual thread per client, needs a java 21 runtime
+    }
+
+    // what to do when a clients outbound queue is full
+    public enum Overflow {
+        DROP_OLDEST, // throw away the oldest unsent frame to make room
+        DISCONNECT   // kick the slow client, they can reconnect and catch up
+    }
+
+    // when LogWriter fsyncs chat logs
+    public enum Fsync {
+        NONE,     // never, leave it to the os (a crash can lose the last few seconds of chat)
+        INTERVAL, // every logs.fsyncIntervalMs for whatever was written since
+        BATCH     // after every batch, before its commit counts as done
+    }
+
+    // standard port for https or tls
+    public final int port;
+    public final Transport transport;
+    // number of selector threads when transport is NIO
+    public final int eventLoops;
+    public final Threads threads;
+    // tls handshakes run on their own bounded pool, see HandshakeExecutor
+    public final int handshakeThreads;
+    public final int handshakeQueue;
+    public final long handshakeTimeoutMs;
+    // tls session resumption, see TlsSessions
+    public final int tlsSessionCacheSize;
+    public final int tlsSessionTimeoutSec;
+    public final boolean tlsSessionTickets;
+    // per client outbound queue, see OutboundQueue
+    public final int outboundCapacity;
+    public final Overflow outboundOverflow;
+    // write coalescing: queued frames are packed together into one tls record / flush up to flushBytes,
+    // and a writer may hold a part full batch up to flushDelayUs waiting for more (0 = dont wait)
+    public final int outboundFlushBytes;
+    public final long outboundFlushDelayUs;
+    // encode broadcasts into pooled direct buffers (FramePool) rather than heap arrays
+    public final boolean framesDirect;
+    public final int framePoolPerClass;
+    // biggest payload accepted from a client per opcode
+    // frames.maxPayload sets the default, frames.maxPayload.<op name> (eg frames.maxPayload.chat_send) overrides one
+    public final FrameLimits frameLimits;
+    // how fast clients (and rooms as a whole) may chat, create and join, limits.<op> etc, see RateLimits
+    final RateLimits rateLimits;
+    // clients that send nothing (not even a heartbeat) for this long get dropped, see IdleMonitor
+    public final int heartbeatIdleTimeoutSec;
+    public final long heartbeatTickMs;
+    // recent chat each room keeps in memory to send whoever joins, see RecentFrames
+    public final int roomBackfillFrames;
+    public final long roomBackfillBytes;
+    // rooms with at least this many members broadcast on rooms.fanOutThreads workers, see FanOut
+    public final int roomFanOutThreshold;
+    public final int roomFanOutThreads;
+    public final int roomFanOutQueue; // batches each worker can have waiting
+    // chat logs roll over to a new segment file once one gets this big, see ChatLog
+    public final long logSegmentBytes;
+    // every this many records in a segment get an entry in its sparse .idx
+    public final int logIndexEvery;
+    // history reads map segments rather than copying them onto the heap
+    public final boolean logMmap;
+    // big history reads get decrypted across this many threads, past this many records
+    public final int logDecryptThreads;
+    public final int logDecryptParallelThreshold;
+    // GET_LOGS from nio clients runs on these, not the event loop, see HistoryReads
+    public final int logReadThreads;
+    public final int logReadQueue;
+    // how much chat history to keep and how hard to work at getting rid of the rest, see LogRetention
+    public final int retentionIntervalSec;
+    public final int retentionMaxAgeDays;
+    public final long retentionMaxMessages;
+    public final long retentionMaxBytes;
+    public final int retentionDeadRoomDays;
+    public final long retentionIoBytesPerSec;
+    // most rooms that keep their log file open at once, see RoomLogs
+    public final int logOpenFiles;
+    // chat persistence runs behind the broadcast on logs.writers background threads, see LogWriter
+    public final int logWriters;
+    public final int logQueue;
+    public final int logBatch;
+    public final Fsync logFsync;
+    public final long logFsyncIntervalMs;
+    public final long logEnqueueTimeoutMs;
+    // print Metrics every N seconds, 0 is off
+    public final int metricsIntervalSec;
+
+    private ServerConfig(Function<String, String> source) {
+        this.port = intOf(source, "port", 8443);
+        this.transport = enumOf(source, "transport", Transport.class, Transport.BLOCKING);
+        this.eventLoops = Math.max(1, intOf(source, "nio.loops", Runtime.getRuntime().availableProcessors()));
+        this.threads = enumOf(source, "threads", Threads.class, Threads.PLATFORM);
+        this.handshakeThreads = Math.max(1, intOf(source, "handshake.threads", Runtime.getRuntime().availableProcessors()));
+        this.handshakeQueue = Math.max(1, intOf(source, "handshake.queue", 256));
+        this.handshakeTimeoutMs = Math.max(1, longOf(source, "handshake.timeoutMs", 10_000));
+        this.tlsSessionCacheSize = Math.max(0, intOf(source, "tls.sessionCacheSize", 20_480));
+        this.tlsSessionTimeoutSec = Math.max(0, intOf(source, "tls.sessionTimeoutSec", 24 * 60 * 60));
+        this.tlsSessionTickets = boolOf(source, "tls.sessionTickets", true);
+        this.outboundCapacity = Math.max(1, intOf(source, "outbound.capacity", 1024));
+        this.outboundOverflow = enumOf(source, "outbound.overflow", Overflow.class, Overflow.DISCONNECT);
+        // 16k is the most a single tls record can carry
+        this.outboundFlushBytes = Math.max(512, intOf(source, "outbound.flushBytes", 16 * 1024));
+        this.outboundFlushDelayUs = Math.max(0, longOf(source, "outbound.flushDelayUs", 0));
+        // direct buffers only pay off when the SSLEngine reads them, blocking sockets want byte[] anyway
+        this.framesDirect = boolOf(source, "frames.direct", transport == Transport.NIO);
+        this.framePoolPerClass = Math.max(0, intOf(source, "frames.poolPerClass", 1024));
+        this.frameLimits = frameLimits(source);
+        this.rateLimits = new RateLimits(source);
+        this.heartbeatIdleTimeoutSec = Math.max(0, intOf(source, "heartbeat.idleTimeoutSec", 90));
+        this.heartbeatTickMs = Math.max(10, longOf(source, "heartbeat.tickMs", 1000));
+        this.roomBackfillFrames = Math.max(0, intOf(source, "rooms.backfill", RecentFrames.DEFAULT_FRAMES));
+        this.roomBackfillBytes = Math.max(0, longOf(source, "rooms.backfillBytes", RecentFrames.DEFAULT_BYTES));
+        this.roomFanOutThreshold = Math.max(0, intOf(source, "rooms.fanOutThreshold", FanOut.DEFAULT_THRESHOLD));
+        this.roomFanOutThreads = Math.max(1, intOf(source, "rooms.fanOutThreads", Runtime.getRuntime().availableProcessors()));
+        this.roomFanOutQueue = Math.max(1, intOf(source, "rooms.fanOutQueue", FanOut.DEFAULT_QUEUE));
+        this.logSegmentBytes = Math.min(ChatLog.MAX_SEGMENT_BYTES,
+            Math.max(4096, longOf(source, "logs.segmentBytes", ChatLog.DEFAULT_SEGMENT_BYTES)));
+        this.retentionIntervalSec = Math.max(0, intOf(source, "retention.intervalSec", 3600));
+        this.retentionMaxAgeDays = Math.max(0, intOf(source, "retention.maxAgeDays", 0));
+        this.retentionMaxMessages = Math.max(0, longOf(source, "retention.maxMessages", 0));
+        this.retentionMaxBytes = Math.max(0, longOf(source, "retention.maxBytes", 0));
+        this.retentionDeadRoomDays = Math.max(0, intOf(source, "retention.deadRoomDays", 30));
+        this.retentionIoBytesPerSec = Math.max(0, longOf(source, "retention.ioBytesPerSec", 8L * 1024 * 1024));
+        this.logIndexEvery = Math.max(1, intOf(source, "logs.indexEvery", LogIndex.DEFAULT_EVERY));
+        this.logMmap = boolOf(source, "logs.mmap", ChatLog.MMAP_DEFAULT);
+        this.logDecryptThreads = Math.max(1, intOf(source, "logs.decryptThreads", Runtime.getRuntime().availableProcessors()));
+        this.logDecryptParallelThreshold = Math.max(1, intOf(source, "logs.decryptParallelThreshold", DataManager.DEFAULT_PARALLEL_THRESHOLD));
+        this.logReadThreads = Math.max(1, intOf(source, "logs.readThreads", Runtime.getRuntime().availableProcessors()));
+        this.logReadQueue = Math.max(1, intOf(source, "logs.readQueue", 64));
+        this.logOpenFiles = Math.max(1, intOf(source, "logs.openFiles", defaultOpenLogs()));
+        this.logWriters = Math.max(1, intOf(source, "logs.writers", 2));
+        this.logQueue = Math.max(1, intOf(source, "logs.queue", 8192));
+        this.logBatch = Math.max(1, intOf(source, "logs.batch", 512));
+        this.logFsync = enumOf(source, "logs.fsync", Fsync.class, Fsync.INTERVAL);
+        this.logFsyncIntervalMs = Math.max(1, longOf(source, "logs.fsyncIntervalMs", 1000));
+        this.logEnqueueTimeoutMs = Math.max(0, longOf(source, "logs.enqueueTimeoutMs", 50));
+        this.metricsIntervalSec = intOf(source, "metrics.intervalSec", 0);
+    }
+
+    // a quarter of the process fd limit (sockets need the rest), capped at 1024
+    private static int defaultOpenLogs() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean unix) {
+            return (int) Math.max(16, Math.min(1024, unix.getMaxFileDescriptorCount() / 4));
+        }
+        return 256;
+    }
+
+    private static FrameLimits frameLimits(Function<String, String> source) {
+        FrameLimits defaults = FrameLimits.serverDefaults();
+        int generic = intOf(source, "frames.maxPayload", FrameLimits.SERVER_DEFAULT);
+        FrameLimits limits = new FrameLimits(generic);
+        // opcodes are constants on Op, look each one up by name
+        for (Field f : Op.class.getFields()) {
+            try {
+                byte op = f.getByte(null);
+                String key = "frames.maxPayload." + f.getName().toLowerCase(Locale.ROOT);
+                // opcodes with their own built in limit (eg chat_send) keep it unless overridden
+                int builtIn = defaults.maxPayload(op);
+                int max = intOf(source, key, builtIn != FrameLimits.SERVER_DEFAULT ? builtIn : generic);
+                if (max != generic) limits = limits.with(op, max);
+            } catch (IllegalAccessException ignored) {
+            }
+        }
+        return limits;
+    }
+
+    // read config from system properties / environment
+    public static ServerConfig load() {
+        return new ServerConfig(ServerConfig::lookup);
+    }
+
+    // build config from a plain map, handy for tests, keys are the same as the property names without "grouph."
+    public static ServerConfig of(Map<String, String> values) {
+        return new ServerConfig(values::get);
+    }
+
+    private static String lookup(String key) {
+        String v = System.getProperty("grouph." + key);
+        if (v == null) {
+            v = System.getenv("GROUPH_" + key.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+        return v;
+    }
+
+    static int intOf(Function<String, String> source, String key, int def) {
+        String v = source.apply(key);
+        if (v == null || v.isBlank()) return def;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("bad int for " + key + ": " + v + ", using " + def);
+            return def;
+        }
+    }
+
+    static long longOf(Function<String, String> source, String key, long def) {
+        String v = source.apply(key);
+        if (v == null || v.isBlank()) return def;
+        try {
+            return Long.parseLong(v.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("bad long for " + key + ": " + v + ", using " + def);
+            return def;
+        }
+    }
+
+    static boolean boolOf(Function<String, String> source, String key, boolean def) {
+        String v = source.apply(key);
+        if (v == null || v.isBlank()) return def;
+        return Boolean.parseBoolean(v.trim());
+    }
+
+    static <E extends Enum<E>> E enumOf(Function<String, String> source, String key, Class<E> type, E def) {
+        String v = source.apply(key);
+        if (v == null || v.isBlank()) return def;
+        try {
+            return Enum.valueOf(type, v.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.println("bad value for " + key + ": " + v + ", using " + def);
+            return def;
+        }
+    }
+}
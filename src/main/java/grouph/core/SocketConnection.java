@@ -0,0 +1,164 @@
+package grouph.core;
+
+import proto.Frame;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Connection over a plain blocking SSLSocket, used by the thread per connection transport
+// send() only queues, the actual socket write happens in a drain task on the writer executor,
+// so a broadcast never blocks on one slow reader. theres at most one drain running per connection
+// which is also what keeps writes to the stream from interleaving
+// frames go through a flushBytes sized buffer so a burst of small ones becomes one tls record
+// and one syscall, not one per frame (every write() on an SSLSocket stream is its own record)
+final class SocketConnection implements Connection {
+    private static final LongAdder FRAMES = Metrics.counter("outbound.frames");
+    private static final LongAdder RECORDS = Metrics.counter("outbound.records");
+
+    private final SSLSocket socket;
+    private final OutputStream out;
+    private final int flushBytes;
+    private final long flushDelayNanos;
+    private final OutboundQueue queue;
+    private final Executor writer;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closeWhenDrained;
+
+    SocketConnection(SSLSocket socket, ServerConfig config, Executor writer) throws IOException {
+        this.socket = socket;
+        this.flushBytes = config.outboundFlushBytes;
+        this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.outboundFlushDelayUs);
+        this.out = new BufferedOutputStream(new RecordCounter(socket.getOutputStream()), flushBytes);
+        this.queue = new OutboundQueue(config, String.valueOf(socket.getRemoteSocketAddress()));
+        this.writer = writer;
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (socket.isClosed()) throw new IOException("connection closed");
+        if (!queue.offer(frame)) {
+            System.err.println("dropping slow client " + remoteAddress() + ", outbound queue full");
+            close();
+            throw new IOException("outbound queue full");
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (!draining.compareAndSet(false, true)) return; // a drain is already on it
+        try {
+            writer.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // server is shutting down
+            draining.set(false);
+            close();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                writeBatch();
+                if (closeWhenDrained && queue.isEmpty()) {
+                    close();
+                    return;
+                }
+                draining.set(false);
+                // something might have been queued after our last poll but before we let go of the flag
+                if (queue.isEmpty() || !draining.compareAndSet(false, true)) return;
+            }
+        } catch (IOException e) {
+            draining.set(false);
+            close();
+        }
+    }
+
+    // write out whatever is queued, flushing each time flushBytes builds up and once at the end
+    // with a flush delay set, a part full buffer waits a little for more frames before going out
+    private void writeBatch() throws IOException {
+        int pending = 0;
+        long deadline = 0;
+        while (true) {
+            Frame f = queue.poll();
+            if (f == null && pending > 0 && flushDelayNanos > 0 && !closeWhenDrained) {
+                f = queue.poll(deadline - System.nanoTime());
+            }
+            if (f == null) break;
+            if (pending == 0) deadline = System.nanoTime() + flushDelayNanos;
+            try {
+                f.writeTo(out);
+                pending += f.length();
+            } finally {
+                f.release();
+            }
+            FRAMES.increment();
+            if (pending >= flushBytes) {
+                out.flush();
+                pending = 0;
+            }
+        }
+        out.flush();
+    }
+
+    // counts what actually reaches the SSLSocket, each write there is one tls record (or a few if its over 16k)
+    private static final class RecordCounter extends FilterOutputStream {
+        RecordCounter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            RECORDS.increment();
+            out.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        queue.clear();
+    }
+
+    @Override
+    public void flushAndClose() {
+        closeWhenDrained = true;
+        if (draining.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+    }
+
+    // ClientHandler checks this so it doesnt slam the socket shut before the last frames go out
+    boolean closing() {
+        return closeWhenDrained;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public int queuedFrames() {
+        return queue.size();
+    }
+
+    @Override
+    public String remoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+}
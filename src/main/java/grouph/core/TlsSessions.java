@@ -0,0 +1,41 @@
+package grouph.core;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.util.concurrent.atomic.LongAdder;
+
+// tls session resumption, so a client that reconnects can skip the full mTLS handshake
+// (key exchange + validating their cert chain against the truststore) and just resume
+// tls 1.3 does this with session tickets, with tickets on the server keeps no state and the client carries it,
+// with them off the server remembers sessions in its own cache (size/timeout below)
+final class TlsSessions {
+    private static final LongAdder resumed = Metrics.counter("tls.resumed");
+    private static final LongAdder full = Metrics.counter("tls.full");
+
+    private TlsSessions() {}
+
+    // the jdk reads this once when its tls code first loads, so this has to run before any SSLContext is made
+    static void enableTickets(ServerConfig config) {
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(config.tlsSessionTickets));
+    }
+
+    // server side session cache knobs, also how long a ticket stays valid for
+    static void configure(SSLContext sslContext, ServerConfig config) {
+        SSLSessionContext sessions = sslContext.getServerSessionContext();
+        sessions.setSessionCacheSize(config.tlsSessionCacheSize);
+        sessions.setSessionTimeout(config.tlsSessionTimeoutSec);
+        System.out.printf("tls session cache size %d, timeout %ds, tickets %s\n",
+            config.tlsSessionCacheSize, config.tlsSessionTimeoutSec, config.tlsSessionTickets ? "on" : "off");
+    }
+
+    // a resumed session keeps the creation time of the handshake it came from,
+    // so if it was created before this handshake started it wasnt a full one
+    static void record(SSLSession session, long handshakeStartMs) {
+        if (session.getCreationTime() < handshakeStartMs) {
+            resumed.increment();
+        } else {
+            full.increment();
+        }
+    }
+}
@@ -1,16 +1,31 @@
 package grouph.core;
 
-import javax.net.ssl.SSLSocket;
+import proto.Frame;
+import proto.Packet;
+
+import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class UserSession {
-    public final SSLSocket socket;
-    public String username;
+    public final Connection conn;
+    public volatile String username;
     public volatile UUID roomId;
     public final AtomicLong lastSeenMs = new AtomicLong(System.currentTimeMillis());
+    final AtomicLongArray limits = RateLimits.buckets(); // how fast this client may send, see RateLimits
+
+    public UserSession(Connection conn) {
+        this.conn = conn;
+    }
 
-    public UserSession(SSLSocket socket) {
-        this.socket = socket;
+    // encode and send a packet to just this user
+    public void send(Packet pkt) throws IOException {
+        Frame f = Frame.of(pkt);
+        try {
+            conn.send(f);
+        } finally {
+            f.release();
+        }
     }
 }
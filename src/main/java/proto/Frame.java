@@ -0,0 +1,98 @@
+package proto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// a packet thats already been encoded, ready for the wire
+// immutable and shared, a broadcast encodes one Frame and every recipient's writer gets the same bytes,
+// nobody copies or re-serialises it. reference counted so a pooled buffer goes back to its pool
+// once the last writer is done with it:
+//  - whoever creates it owns one reference
+//  - anyone who holds on to it past the current call (eg an outbound queue) retain()s
+//  - everyone release()s when finished
+public final class Frame {
+    private final ByteBuffer data; // position 0, limit = frame length, never moved
+    private final FramePool pool;  // where data goes back to, null for plain heap frames
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    Frame(ByteBuffer data, FramePool pool) {
+        this.data = data;
+        this.pool = pool;
+    }
+
+    // plain heap frame, good enough for one off replies
+    public static Frame of(Packet pkt) {
+        return new Frame(ByteBuffer.wrap(pkt.toBytes()), null);
+    }
+
+    // wrap bytes that are already a full frame
+    public static Frame wrap(byte[] frame) {
+        return new Frame(ByteBuffer.wrap(frame), null);
+    }
+
+    public int length() {
+        return data.limit();
+    }
+
+    public byte opcode() {
+        return data.get(5);
+    }
+
+    // a view for whoever is writing it out, shares the bytes but has its own position
+    public ByteBuffer buffer() {
+        return data.duplicate();
+    }
+
+    // blocking sockets want a byte[], heap frames hand theirs over directly,
+    // direct ones get copied through a small per thread chunk
+    public void writeTo(OutputStream out) throws IOException {
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset(), data.limit());
+            return;
+        }
+        byte[] chunk = CHUNK.get();
+        ByteBuffer src = data.duplicate();
+        while (src.hasRemaining()) {
+            int n = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[8 * 1024]);
+
+    public Frame retain() {
+        int r = refs.getAndIncrement();
+        if (r <= 0) {
+            refs.getAndDecrement();
+            throw new IllegalStateException("frame already released");
+        }
+        return this;
+    }
+
+    // retain() for when the frame might already be gone (eg read out of a cache someone else is releasing from),
+    // false instead of an exception if it is
+    public boolean tryRetain() {
+        while (true) {
+            int r = refs.get();
+            if (r <= 0) return false;
+            if (refs.compareAndSet(r, r + 1)) return true;
+        }
+    }
+
+    public void release() {
+        int r = refs.decrementAndGet();
+        if (r == 0) {
+            if (pool != null) pool.recycle(data);
+        } else if (r < 0) {
+            throw new IllegalStateException("frame released too many times");
+        }
+    }
+
+    // for tests
+    public int refCount() {
+        return refs.get();
+    }
+}
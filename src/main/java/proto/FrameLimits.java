@@ -0,0 +1,53 @@
+package proto;
+
+import java.util.Arrays;
+
+// biggest payload we will accept for each opcode, checked as soon as the 12 byte header is in
+// and before we allocate anything for the payload. without this a client can claim a 2 GB payload
+// and we would happily try to new byte[] it
+public final class FrameLimits {
+    // nothing on this protocol should ever be bigger, also what clients use reading from the server
+    public static final int ABSOLUTE_MAX = 16 * 1024 * 1024;
+    public static final FrameLimits LENIENT = new FrameLimits(ABSOLUTE_MAX);
+    // default for anything a client sends that doesnt have its own limit
+    public static final int SERVER_DEFAULT = 4 * 1024;
+
+    private final int[] max = new int[256]; // indexed by unsigned opcode
+
+    public FrameLimits(int defaultMax) {
+        Arrays.fill(max, clamp(defaultMax));
+    }
+
+    private FrameLimits(int[] max) {
+        System.arraycopy(max, 0, this.max, 0, max.length);
+    }
+
+    // what the server accepts from clients by default, control packets are tiny,
+    // a chat message is at most one full tlv (64 KB) plus its length field and a bit of slack
+    public static FrameLimits serverDefaults() {
+        return new FrameLimits(SERVER_DEFAULT)
+            .with(Op.CHAT_SEND, 70 * 1024);
+    }
+
+    // copy with a different limit for one opcode
+    public FrameLimits with(byte opcode, int maxPayload) {
+        FrameLimits copy = new FrameLimits(max);
+        copy.max[opcode & 0xFF] = clamp(maxPayload);
+        return copy;
+    }
+
+    public int maxPayload(byte opcode) {
+        return max[opcode & 0xFF];
+    }
+
+    public void check(byte opcode, int payloadLen) throws FrameTooLargeException {
+        int limit = max[opcode & 0xFF];
+        if (payloadLen > limit) {
+            throw new FrameTooLargeException(opcode, payloadLen, limit);
+        }
+    }
+
+    private static int clamp(int v) {
+        return Math.max(0, Math.min(v, ABSOLUTE_MAX));
+    }
+}
@@ -0,0 +1,75 @@
+package proto;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// recycles direct buffers for Frames so busy rooms dont churn through allocations
+// buffers come in power of two size classes from 256 bytes to 64 KB, anything bigger
+// (rare, eg a huge history page) just gets a one off heap buffer
+// direct memory means the nio transport can hand frames to the SSLEngine without a heap copy
+public final class FramePool {
+    private static final int MIN_SHIFT = 8;  // 256 bytes
+    private static final int MAX_SHIFT = 16; // 64 KB
+
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+    private final int maxPerClass;
+
+    public FramePool(int maxPerClass) {
+        this.maxPerClass = maxPerClass;
+        int classes = MAX_SHIFT - MIN_SHIFT + 1;
+        this.free = newQueues(classes);
+        this.freeCount = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<ByteBuffer>[] newQueues(int n) {
+        return (Queue<ByteBuffer>[]) new Queue<?>[n];
+    }
+
+    // encode a packet once into a pooled buffer
+    public Frame encode(Packet pkt) {
+        int len = pkt.encodedLength();
+        int cls = sizeClass(len);
+        if (cls < 0) return Frame.of(pkt); // too big to pool
+
+        ByteBuffer buf = free[cls].poll();
+        if (buf != null) {
+            freeCount[cls].decrementAndGet();
+            buf.clear();
+        } else {
+            buf = ByteBuffer.allocateDirect(1 << (cls + MIN_SHIFT));
+        }
+        pkt.writeTo(buf);
+        buf.flip();
+        return new Frame(buf, this);
+    }
+
+    // last reference to a frame went away
+    void recycle(ByteBuffer buf) {
+        int cls = sizeClass(buf.capacity());
+        if (cls < 0 || freeCount[cls].incrementAndGet() > maxPerClass) {
+            if (cls >= 0) freeCount[cls].decrementAndGet();
+            return; // let gc have it
+        }
+        free[cls].add(buf);
+    }
+
+    // buffers sitting idle, for tests/metrics
+    public int pooled() {
+        int n = 0;
+        for (AtomicInteger c : freeCount) n += c.get();
+        return n;
+    }
+
+    private static int sizeClass(int len) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, len) - 1));
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+}
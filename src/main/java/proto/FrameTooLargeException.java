@@ -0,0 +1,20 @@
+package proto;
+
+import java.io.IOException;
+
+// a frame header asked for more payload than FrameLimits allows, nothing was allocated for it
+// the stream cant be trusted after this so the connection should be dropped
+public class FrameTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public final byte opcode;
+    public final int length;
+    public final int limit;
+
+    public FrameTooLargeException(byte opcode, int length, int limit) {
+        super(String.format("frame too large: opcode 0x%02x payload %d > %d", opcode, length, limit));
+        this.opcode = opcode;
+        this.length = length;
+        this.limit = limit;
+    }
+}
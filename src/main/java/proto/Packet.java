@@ -37,11 +37,25 @@ public class Packet {
 
     // encoding, we should be able to serialise a packet into a byte array ready to write to a socket
     public byte[] toBytes() {
+        // because bytebuffers are easy to deal with
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength()).order(ByteOrder.BIG_ENDIAN);
+        writeTo(buf);
+
+        // then return as byte[]
+        return buf.array();
+    }
+
+    // header plus every tlv
+    public int encodedLength() {
         // for each tlv, calc size, adds all lengths up
-        int payloadLen = tlvs.stream().mapToInt(Tlv::size).sum();
+        int payloadLen = 0;
+        for (Tlv t : tlvs) payloadLen += t.size();
+        return HEADER_SIZE + payloadLen;
+    }
 
-        // because bytebuffers are easy to deal with
-        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payloadLen).order(ByteOrder.BIG_ENDIAN);
+    // serialise straight into a buffer we already have (eg a pooled direct one), must have encodedLength() room
+    public void writeTo(ByteBuffer buf) {
+        int payloadLen = encodedLength() - HEADER_SIZE;
 
         // now to create our packet we put header, version, opcode, and payload length
         buf.putInt(MAGIC);         // CHAT
@@ -54,13 +68,15 @@ public class Packet {
         for (Tlv t : tlvs) {
             t.writeTo(buf);
         }
-
-        // then return as byte[]
-        return buf.array();
     }
 
     // decoding, should return a nice Packet class
     public static Packet read(InputStream inputStream) throws IOException {
+        return read(inputStream, FrameLimits.LENIENT);
+    }
+
+    // same but refuses anything over the limit for its opcode before allocating for it
+    public static Packet read(InputStream inputStream, FrameLimits limits) throws IOException {
         // read header into byte array
         byte[] header = readFully(inputStream, HEADER_SIZE);
         if (header == null) return null; // this is a problem
@@ -84,19 +100,22 @@ public class Packet {
         if (payloadLen < 0) {
             throw new IOException("negative payload length");
         }
+        limits.check(op, payloadLen);
 
         // read payload
-        byte[] payload = readFully(inputStream, payloadLen);
-        if (payload == null) {
-            throw new EOFException("unexpected EOF in payload");
-        }
+        byte[] payload = readPayload(inputStream, payloadLen);
 
         Packet pkt = new Packet();
         pkt.version = ver;
         pkt.opcode  = op;
         // parse tlvs
-        ByteBuffer pb = ByteBuffer.wrap(payload).order(ByteOrder.BIG_ENDIAN);
+        parseTlvs(pkt, ByteBuffer.wrap(payload).order(ByteOrder.BIG_ENDIAN));
 
+        // yes man got packet
+        return pkt;
+    }
+
+    private static void parseTlvs(Packet pkt, ByteBuffer pb) throws IOException {
         while (pb.hasRemaining()) { // read till end
             if (pb.remaining() < 4) { // tlv header being 4 bytes
                 throw new IOException("truncated tlv header");
@@ -110,9 +129,22 @@ public class Packet {
             pb.get(value); // put in byte buffer
             pkt.tlvs.add(new Tlv(type, value)); // add tlv to packet
         }
+    }
 
-        // yes man got packet
-        return pkt;
+    // payloads are read in growing chunks rather than one new byte[payloadLen] up front,
+    // so a header that lies about its length only costs us what the client actually sends
+    private static final int PAYLOAD_CHUNK = 64 * 1024;
+
+    private static byte[] readPayload(InputStream inputStream, int n) throws IOException {
+        byte[] b = new byte[Math.min(n, PAYLOAD_CHUNK)];
+        int off = 0;
+        while (off < n) {
+            if (off == b.length) b = Arrays.copyOf(b, Math.min(n, b.length * 2)); // they kept sending, make room
+            int r = inputStream.read(b, off, b.length - off);
+            if (r == -1) throw new EOFException("unexpected EOF in payload");
+            off += r;
+        }
+        return b;
     }
 
     private static byte[] readFully(InputStream inputStream, int n) throws IOException {
@@ -184,6 +216,8 @@ public class Packet {
         public final byte[] value; // the value of the field, we can interpret this how we want, String, int whatever
 
         public Tlv(int type, byte[] value) {
+            // length goes on the wire as a u16, anything bigger would silently wrap and corrupt the frame
+            if (value.length > 0xFFFF) throw new IllegalArgumentException("tlv value too long: " + value.length + " bytes");
             this.type = type;
             this.value = value;
         }
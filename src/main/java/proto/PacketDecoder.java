@@ -0,0 +1,76 @@
+package proto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// reads frames off a blocking stream into one reusable buffer and hands back a PacketView over it
+// one per connection, the buffer grows to fit the biggest frame seen and then stays put,
+// so after warm up reading a frame allocates nothing
+public final class PacketDecoder {
+    private byte[] buf;
+    private ByteBuffer wrapped;
+    private final FrameLimits limits;
+    private final PacketView view;
+
+    public PacketDecoder() {
+        this(4096, FrameLimits.LENIENT);
+    }
+
+    public PacketDecoder(int initialSize, FrameLimits limits) {
+        this.buf = new byte[Math.max(Packet.HEADER_SIZE, initialSize)];
+        this.wrapped = ByteBuffer.wrap(buf);
+        this.limits = limits;
+        this.view = new PacketView(limits);
+    }
+
+    // next frame, or null on a clean eof between frames
+    // the view (and any strings not yet pulled out of it) is only good until the next call
+    public PacketView read(InputStream in) throws IOException {
+        if (!readFully(in, 0, Packet.HEADER_SIZE)) return null;
+
+        if (wrapped.getInt(0) != Packet.MAGIC) {
+            throw new IOException("bad magic :(");
+        }
+        int payloadLen = wrapped.getInt(8);
+        if (payloadLen < 0) {
+            throw new IOException("negative payload length");
+        }
+        limits.check(wrapped.get(5), payloadLen); // nothing allocated yet
+
+        // read the payload, only doubling the buffer once its full of bytes the client really sent,
+        // so a header that lies about its length cant make us allocate much more than we received
+        int total = Packet.HEADER_SIZE + payloadLen;
+        int have = Packet.HEADER_SIZE;
+        while (have < total) {
+            if (have == buf.length) grow(Math.min(total, buf.length * 2));
+            int want = Math.min(total, buf.length) - have;
+            readFully(in, have, want);
+            have += want;
+        }
+
+        view.wrap(wrapped, 0, payloadLen);
+        return view;
+    }
+
+    private void grow(int n) {
+        buf = Arrays.copyOf(buf, n);
+        wrapped = ByteBuffer.wrap(buf);
+    }
+
+    // false only for eof before the first byte, eof part way through is an error
+    private boolean readFully(InputStream in, int off, int n) throws IOException {
+        int done = 0;
+        while (done < n) {
+            int r = in.read(buf, off + done, n - done);
+            if (r == -1) {
+                if (done == 0 && off == 0) return false;
+                throw new EOFException("unexpected EOF in frame");
+            }
+            done += r;
+        }
+        return true;
+    }
+}
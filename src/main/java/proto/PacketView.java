@@ -0,0 +1,156 @@
+package proto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// a flyweight over one frame sitting in somebody elses buffer, the server side version of Packet
+// decoding a Packet allocates the payload array, a Tlv and a byte[] per field and a list, for every frame,
+// this instead just remembers where each tlv starts and how long it is, and only makes a String
+// when someone actually calls getStr. one of these is reused per connection so steady state decoding allocates nothing
+// NOTE: only valid until the next decode on the same buffer, copy anything you want to keep
+public final class PacketView {
+    public byte version;
+    public byte opcode;
+
+    private final FrameLimits limits;
+    private ByteBuffer buf;
+    private int[] types = new int[8];
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+    private int count;
+
+    public PacketView() {
+        this(FrameLimits.LENIENT);
+    }
+
+    // frames over the limit throw FrameTooLargeException from decode as soon as their header shows up
+    public PacketView(FrameLimits limits) {
+        this.limits = limits;
+    }
+
+    // incremental decoding for the nio transport, bytes turn up in whatever chunks the network feels like
+    // given a buffer in read mode, point this view at the next complete frame and move position past it,
+    // or return false and leave the buffer alone if the whole frame isnt here yet
+    public boolean decode(ByteBuffer in) throws IOException {
+        if (in.remaining() < Packet.HEADER_SIZE) return false;
+
+        int start = in.position();
+        if (in.getInt(start) != Packet.MAGIC) {
+            throw new IOException("bad magic :(");
+        }
+        int payloadLen = in.getInt(start + 8);
+        if (payloadLen < 0) {
+            throw new IOException("negative payload length");
+        }
+        limits.check(in.get(start + 5), payloadLen); // before anyone grows a buffer for it
+        if (in.remaining() - Packet.HEADER_SIZE < payloadLen) return false;
+
+        wrap(in, start, payloadLen);
+        in.position(start + Packet.HEADER_SIZE + payloadLen);
+        return true;
+    }
+
+    // point at a complete frame starting at absolute index start
+    void wrap(ByteBuffer frame, int start, int payloadLen) throws IOException {
+        this.buf = frame;
+        this.version = frame.get(start + 4);
+        this.opcode = frame.get(start + 5);
+        this.count = 0;
+
+        int pos = start + Packet.HEADER_SIZE;
+        int end = pos + payloadLen;
+        while (pos < end) { // read till end
+            if (end - pos < 4) { // tlv header being 4 bytes
+                throw new IOException("truncated tlv header");
+            }
+            int type = Short.toUnsignedInt(frame.getShort(pos));
+            int len = Short.toUnsignedInt(frame.getShort(pos + 2));
+            pos += 4;
+            if (len > end - pos) {
+                throw new IOException("tlv length longer than remaining, not good bro");
+            }
+            add(type, pos, len);
+            pos += len;
+        }
+    }
+
+    private void add(int type, int off, int len) {
+        if (count == types.length) { // only grows on a frame with lots of fields, then stays that size
+            types = Arrays.copyOf(types, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        types[count] = type;
+        offsets[count] = off;
+        lengths[count] = len;
+        count++;
+    }
+
+    private int find(int type) {
+        for (int i = 0; i < count; i++) if (types[i] == type) return i;
+        return -1;
+    }
+
+    public int tlvCount() {
+        return count;
+    }
+
+    public boolean has(int type) {
+        return find(type) >= 0;
+    }
+
+    // byte length of a field, -1 if its not there
+    public int length(int type) {
+        int i = find(type);
+        return i < 0 ? -1 : lengths[i];
+    }
+
+    // the only place we actually make a String
+    public String getStr(int type) {
+        int i = find(type);
+        if (i < 0) return null;
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + offsets[i], lengths[i], StandardCharsets.UTF_8);
+        }
+        return new String(copy(i), StandardCharsets.UTF_8);
+    }
+
+    // no boxing, missing fields give back ifMissing
+    public long getU32(int type, long ifMissing) {
+        int i = find(type);
+        if (i < 0) return ifMissing;
+        if (lengths[i] != 4) throw new IllegalStateException("U32 requires 4 bytes");
+        return buf.getInt(offsets[i]) & 0xFFFF_FFFFL;
+    }
+
+    public long getU64(int type, long ifMissing) {
+        int i = find(type);
+        if (i < 0) return ifMissing;
+        if (lengths[i] != 8) throw new IllegalStateException("U64 requires 8 bytes");
+        return buf.getLong(offsets[i]);
+    }
+
+    public byte[] getBytes(int type) {
+        int i = find(type);
+        return i < 0 ? null : copy(i);
+    }
+
+    private byte[] copy(int i) {
+        byte[] out = new byte[lengths[i]];
+        buf.get(offsets[i], out);
+        return out;
+    }
+
+    // full copy as a normal Packet, for when something needs to hang on to it
+    public Packet toPacket() {
+        Packet p = new Packet();
+        p.version = version;
+        p.opcode = opcode;
+        for (int i = 0; i < count; i++) {
+            p.tlvs.add(new Packet.Tlv(types[i], copy(i)));
+        }
+        return p;
+    }
+}
@@ -65,6 +65,18 @@ public final class Packets {
         return p;
     }
 
+    // a page of history, newest first, cursor is the one from the last page's final ack (or leave it off for the newest)
+    public static Packet getLogs(long cursor, int limit) {
+        Packet p = getLogs();
+        if (cursor >= 0) p.addU64(T.CURSOR, cursor);
+        return p.addU32(T.LIMIT, limit);
+    }
+
+    // a page of the history from just before timestampMs, newest first, keep paging with the CURSOR it comes back with
+    public static Packet getLogsBefore(long timestampMs, int limit) {
+        return getLogs().addU64(T.TIMESTAMPMS, timestampMs).addU32(T.LIMIT, limit);
+    }
+
     // for server to send
 
     public static Packet getLogsAck(String chatLogs) {
@@ -73,6 +85,21 @@ public final class Packets {
         return p.addStr(T.CHAT_LOGS, chatLogs);
     }
 
+    // paged history comes back as one or more of these, each a run of messages newest first:
+    //   TIMESTAMPMS, [USERNAME], MESSAGE, TIMESTAMPMS, ...
+    // the last ack of a page has DONE, plus CURSOR if theres older history to ask for
+    public static Packet getLogsAck() {
+        Packet p = new Packet();
+        p.opcode = Op.GET_LOGS_ACK;
+        return p;
+    }
+
+    public static Packet addLogEntry(Packet ack, long timestampMs, String sender, String message) {
+        ack.addU64(T.TIMESTAMPMS, timestampMs);
+        if (sender != null) ack.addStr(T.USERNAME, sender);
+        return ack.addStr(T.MESSAGE, message);
+    }
+
     public static Packet heartbeatAck(long nowMs) {
         Packet p = new Packet();
         p.opcode = Op.HEARTBEAT_ACK;
@@ -154,6 +181,13 @@ public final class Packets {
     }
 
 
+    // same check against a view, compares byte lengths so no string gets made
+    public static boolean validateContentLen(PacketView pkt) {
+        int actual = pkt.length(T.MESSAGE);
+        long declared = pkt.getU32(T.CONTENT_LEN, -1);
+        return actual >= 0 && declared == actual;
+    }
+
     // UUID encode
     public static byte[] uuidToBytes(UUID id) {
         ByteBuffer b = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
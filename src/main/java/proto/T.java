@@ -14,4 +14,7 @@ public interface T {
     int TIMESTAMPMS = 0x0007; // u64
     int ERROR_CODE = 0x0008; // u32
     int CHAT_LOGS = 0x0009; // str
+    int CURSOR = 0x000A; // u64, where a GET_LOGS page starts / where the next older one does
+    int LIMIT = 0x000B; // u32, most messages wanted in a GET_LOGS page
+    int DONE = 0x000C; // u32, set on the last GET_LOGS_ACK of a page
 }
@@ -0,0 +1,151 @@
+package grouph;
+
+import grouph.core.Server;
+import grouph.core.ServerConfig;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import proto.Op;
+import proto.Packet;
+import proto.Packets;
+
+import javax.net.ssl.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// opens a pile of idle mTLS clients against a local server and reports
+// how many threads and how much heap each connection costs, once per thread mode
+// run with ./gradlew loadTest (add -PjavaVersion=21 for the virtual thread run, -Dgrouph.load.clients=N to scale)
+// needs stores/server-keystore.jks from ./gradlew makeKeystores and a client cert the server trusts in certs/
+@Tag("load")
+public class LoadTest {
+    private static final int CLIENTS = Integer.getInteger("grouph.load.clients", 2000);
+
+    private static final String CLIENT_KEYSTORE = "certs/client-keystore.jks";
+    private static final String CLIENT_TRUSTSTORE = "certs/client-truststore.jks";
+
+    @Test
+    @DisplayName("idle connections on platform threads")
+    void platformThreads() throws Exception {
+        run(ServerConfig.Threads.PLATFORM, 18443);
+    }
+
+    @Test
+    @DisplayName("idle connections on virtual threads")
+    void virtualThreads() throws Exception {
+        assumeTrue(Runtime.version().feature() >= 21, "virtual threads need java 21, run with -PjavaVersion=21");
+        run(ServerConfig.Threads.VIRTUAL, 18444);
+    }
+
+    private void run(ServerConfig.Threads mode, int port) throws Exception {
+        assumeTrue(new File("stores/server-keystore.jks").exists(), "no server keystore, run ./gradlew makeKeystores");
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        settle();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        ServerConfig config = ServerConfig.of(Map.of(
+            "port", String.valueOf(port),
+            "threads", mode.name()
+        ));
+        Server[] server = new Server[1];
+        Thread serverThread = new Thread(() -> server[0] = new Server(config));
+        serverThread.start();
+        Thread.sleep(2000); // same start up grace as ServerTest
+
+        SSLSocketFactory factory = clientFactory();
+        List<SSLSocket> clients = new ArrayList<>(CLIENTS);
+        long t0 = System.nanoTime();
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                SSLSocket s = (SSLSocket) factory.createSocket("localhost", port);
+                s.setSoTimeout(10_000);
+                s.startHandshake();
+                clients.add(s);
+            }
+            long connectMs = (System.nanoTime() - t0) / 1_000_000;
+
+            // every connection should have a live handler behind it
+            for (SSLSocket s : clients) {
+                Packets.write(s.getOutputStream(), Packets.heartbeat());
+            }
+            for (SSLSocket s : clients) {
+                Packet ack = Packets.read(s.getInputStream());
+                assertNotNull(ack);
+                assertEquals(Op.HEARTBEAT_ACK, ack.opcode);
+            }
+
+            settle();
+            int threadDelta = threads.getThreadCount() - threadsBefore;
+            long heapDelta = memory.getHeapMemoryUsage().getUsed() - heapBefore;
+
+            // heap includes the client side sockets too since both live in this jvm,
+            // its the difference between modes that matters
+            System.out.printf(
+                """
+                *** %s threads ***
+                connections:        %d (connected in %d ms)
+                live threads added: %d (%.3f per connection)
+                heap used added:    %d KB (%.1f KB per connection)
+                """,
+                mode, clients.size(), connectMs,
+                threadDelta, threadDelta / (double) clients.size(),
+                heapDelta / 1024, heapDelta / 1024.0 / clients.size()
+            );
+            assertEquals(CLIENTS, clients.size());
+        } finally {
+            for (SSLSocket s : clients) {
+                try {
+                    s.close();
+                } catch (Exception ignored) {
+                }
+            }
+            if (server[0] != null) server[0].stop();
+            serverThread.interrupt();
+        }
+    }
+
+    private static void settle() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+    }
+
+    // same setup as ServerTest.createClientSocket
+    private static SSLSocketFactory clientFactory() throws Exception {
+        char[] pass = ServerTest.getKeystorePass("certs/keystorePass.txt").toCharArray();
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (FileInputStream fis = new FileInputStream(CLIENT_KEYSTORE)) {
+            keyStore.load(fis, pass);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, pass);
+
+        KeyStore trustStore = KeyStore.getInstance("JKS");
+        try (FileInputStream fis = new FileInputStream(CLIENT_TRUSTSTORE)) {
+            trustStore.load(fis, pass);
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
+        return sslContext.getSocketFactory();
+    }
+}
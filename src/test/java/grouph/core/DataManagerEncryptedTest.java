@@ -28,11 +28,11 @@ public class DataManagerEncryptedTest {
         //save message (encrypted)
         dm.saveMessage(msg);
 
-        //check log file exists
-        Path path = dm.getDataPath().toPath();
-        assertTrue(Files.exists(path), "Log file should exist");
+        //check log segment exists
+        Path path = dm.getLogDir().toPath().resolve("00000000.seg");
+        assertTrue(Files.exists(path), "Log segment should exist");
 
-        String raw = Files.readString(path);
+        String raw = new String(Files.readAllBytes(path), java.nio.charset.StandardCharsets.ISO_8859_1);
         assertFalse(raw.isEmpty(), "Log file should not be empty");
 
         //check that plaintext is not visible on disk
@@ -44,8 +44,11 @@ public class DataManagerEncryptedTest {
         assertTrue(logs.contains(msg),
             "Decrypted logs should contain the original message");
 
-        // only delete the log file, not the directory
+        // only delete this rooms log, not the shared directory
         Files.deleteIfExists(path);
+        Files.deleteIfExists(LogIndex.pathFor(path));
+        Files.deleteIfExists(path.resolveSibling("keys.v2"));
+        Files.deleteIfExists(path.getParent());
     }
 
 }
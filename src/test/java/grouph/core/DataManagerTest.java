@@ -5,9 +5,17 @@ import org.junit.jupiter.api.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -71,17 +79,10 @@ public class DataManagerTest {
 
     @Test
     void testSaveMessage_DecryptedViewIsCorrect() throws Exception {
-        File dataFile = dataManager.getDataPath();
-
-        //ensure clean start
-        if (dataFile.exists()) {
-            Files.delete(dataFile.toPath());
-        }
-
         //save a message (this time it should encrypt)
         dataManager.saveMessage("first message");
 
-        assertTrue(dataFile.exists(), "Data file should be created by saveMessage");
+        assertFalse(segments().isEmpty(), "Log segment should be created by saveMessage");
 
         //getLogs() should return plaintext after it is unencrypted
         String logs = dataManager.getLogs();
@@ -90,21 +91,12 @@ public class DataManagerTest {
 
     @Test
     void testSaveMessage_AppendsToFile_EncryptedOnDisk_PlaintextViaGetLogs() throws Exception {
-        File dataFile = dataManager.getDataPath();
-
-        if (dataFile.exists()) {
-            Files.delete(dataFile.toPath());
-        }
-        if (!dataFile.getParentFile().exists()) {
-            assertTrue(dataFile.getParentFile().mkdirs(), "Failed to create parent directory");
-        }
-
         //save two messages both will be AES-GCM encrypted
         dataManager.saveMessage("message one");
-        dataManager.saveMessage("message two");
+        dataManager.saveMessage("alice", "message two");
 
-        //raw file content should NOT contain plaintext messages,
-        String content = Files.readString(dataFile.toPath());
+        //raw segment content should NOT contain plaintext messages,
+        String content = rawSegments();
         assertFalse(content.contains("message one"),
                 "Raw log file should not contain plaintext 'message one'");
         assertFalse(content.contains("message two"),
@@ -119,6 +111,263 @@ public class DataManagerTest {
     }
 
 
+    @Test
+    void testGetLogs_ImportsLegacyEncryptedLines() throws Exception {
+        //old format: Base64(nonce):Base64(ciphertext) per line, keyed off the room id
+        File dataFile = dataManager.getDataPath();
+        try (FileWriter writer = new FileWriter(dataFile)) {
+            writer.write(legacyLine("old one") + "\n");
+            writer.write("not encrypted\n");
+            writer.write(legacyLine("old two") + "\n");
+        }
+
+        assertEquals(List.of("old one", "not encrypted", "old two"), dataManager.getLogs().lines().toList());
+        assertFalse(dataFile.exists(), "legacy file should be gone once imported");
+        assertFalse(rawSegments().contains("not encrypted"), "imported plaintext should be encrypted on disk");
+
+        //new messages land after the imported ones
+        dataManager.saveMessage("new");
+        assertEquals(List.of("old one", "not encrypted", "old two", "new"), dataManager.getLogs().lines().toList());
+    }
+
+    @Test
+    void testSaveMessage_RollsOverToNewSegments() throws Exception {
+        DataManager small = new DataManager(room, 256);
+        for (int i = 0; i < 20; i++) small.saveMessage("user", "message " + i);
+
+        List<Path> segs = segments();
+        assertTrue(segs.size() > 1, "should have rolled over, got " + segs.size());
+        for (Path p : segs) assertTrue(Files.size(p) <= 256, p + " is over the cap");
+
+        List<String> lines = small.getLogs().lines().toList();
+        assertEquals(20, lines.size());
+        for (int i = 0; i < 20; i++) assertEquals("message " + i, lines.get(i));
+    }
+
+    @Test
+    void testGetLogs_IgnoresTornLastRecord() throws Exception {
+        dataManager.saveMessage("kept");
+        dataManager.saveMessage("torn");
+        Path seg = segments().get(0);
+        byte[] bytes = Files.readAllBytes(seg);
+        Files.write(seg, java.util.Arrays.copyOf(bytes, bytes.length - 5));
+
+        assertEquals(List.of("kept"), dataManager.getLogs().lines().toList());
+    }
+
+    @Test
+    void testGetAesKey_IsPerRoom() {
+        Room other = new Room(java.util.UUID.randomUUID(), "000000");
+        assertNotEquals(dataManager.getAesKey(), new DataManager(other).getAesKey(), "rooms should not share a key");
+        //same room id, same key, even from a different DataManager
+        assertEquals(dataManager.getAesKey(), new DataManager(room).getAesKey());
+    }
+
+    @Test
+    void testReadPage_NewestFirstAcrossSegments() throws Exception {
+        DataManager small = new DataManager(room, 256);
+        for (int i = 0; i < 25; i++) small.saveMessage("user" + i, "message " + i);
+        assertTrue(segments().size() > 1);
+
+        List<String> seen = new java.util.ArrayList<>();
+        long cursor = ChatLog.END;
+        int pages = 0;
+        while (true) {
+            DataManager.Page page = small.readPage(cursor, 10);
+            pages++;
+            for (DataManager.Message m : page.messages) {
+                assertEquals(m.text.replace("message ", "user"), m.sender);
+                seen.add(m.text);
+            }
+            if (page.next == ChatLog.NONE) break;
+            cursor = page.next;
+            //new messages after the first page dont shift where the next page starts
+            small.saveMessage("late", "late " + pages);
+        }
+
+        assertEquals(3, pages);
+        assertEquals(25, seen.size());
+        for (int i = 0; i < 25; i++) assertEquals("message " + (24 - i), seen.get(i));
+    }
+
+    @Test
+    void testReadPage_EmptyRoom() throws Exception {
+        DataManager.Page page = dataManager.readPage(ChatLog.END, 10);
+        assertTrue(page.messages.isEmpty());
+        assertEquals(ChatLog.NONE, page.next);
+    }
+
+    @Test
+    void testReadPage_SameWithIndexRebuilt() throws Exception {
+        DataManager dm = new DataManager(room, 4096, 4, false);
+        for (int i = 0; i < 200; i++) dm.saveMessage("user", "message " + i);
+        List<String> before = texts(dm.readPage(ChatLog.END, 30));
+        assertEquals("message 199", before.get(0));
+
+        //sealed segments get their index written back by the first read that needs it, the current one by the writer
+        for (Path seg : segments()) Files.delete(LogIndex.pathFor(seg));
+        assertEquals(before, texts(dm.readPage(ChatLog.END, 30)));
+        Path sealed = segments().get(segments().size() - 2);
+        long cursor = (Long.parseLong(sealed.getFileName().toString().substring(0, 8)) << 32) | Files.size(sealed);
+        dm.readPage(cursor, 30);
+        assertTrue(Files.exists(LogIndex.pathFor(sealed)));
+
+        dm.saveMessage("user", "message 200");
+        assertTrue(Files.exists(LogIndex.pathFor(segments().get(segments().size() - 1))));
+        assertEquals("message 200", texts(dm.readPage(ChatLog.END, 1)).get(0));
+    }
+
+    @Test
+    void testCursorAt_StartsJustBeforeThatTime() throws Exception {
+        DataManager dm = new DataManager(room, 4096, 8, false);
+        List<ChatLog.Entry> entries = new java.util.ArrayList<>();
+        for (int i = 0; i < 300; i++) entries.add(dm.encrypt(1000L + i * 10, "user", "message " + i));
+        dm.appendAll(entries, false);
+        assertTrue(segments().size() > 1);
+
+        //message 150 was at 2500, so the page before 2505 ends with it
+        assertEquals(List.of("message 150", "message 149"), texts(dm.readPage(dm.cursorAt(2505), 2)));
+        assertEquals(List.of("message 149"), texts(dm.readPage(dm.cursorAt(2500), 1)));
+        assertTrue(dm.readPage(dm.cursorAt(1000), 10).messages.isEmpty());
+        assertEquals(List.of("message 299"), texts(dm.readPage(dm.cursorAt(999_999), 1)));
+    }
+
+    @Test
+    void testSaveMessage_AfterTornTailIsStillReadable() throws Exception {
+        dataManager.saveMessage("kept");
+        dataManager.saveMessage("torn");
+        Path seg = segments().get(0);
+        byte[] bytes = Files.readAllBytes(seg);
+        Files.write(seg, java.util.Arrays.copyOf(bytes, bytes.length - 5));
+
+        dataManager.saveMessage("after");
+        assertEquals(List.of("kept", "after"), dataManager.getLogs().lines().toList());
+    }
+
+    @Test
+    void testGetLogs_SameMappedOrNot() throws Exception {
+        //big enough that the segment gets mapped
+        String big = "y".repeat(1024);
+        List<ChatLog.Entry> entries = new java.util.ArrayList<>();
+        for (int i = 0; i < 100; i++) entries.add(dataManager.encrypt(1000L + i, "user" + i, big + i));
+        dataManager.appendAll(entries, false);
+
+        String mapped = dataManager.getLogs();
+        DataManager.mapSegments(false);
+        try {
+            assertEquals(mapped, dataManager.getLogs());
+        } finally {
+            DataManager.mapSegments(true);
+        }
+        assertEquals(100, mapped.lines().count());
+        assertEquals("user99", dataManager.readPage(ChatLog.END, 1).messages.get(0).sender);
+    }
+
+    @Test
+    void testGetLogs_ParallelDecryptKeepsOrder() throws Exception {
+        List<ChatLog.Entry> entries = new java.util.ArrayList<>();
+        for (int i = 0; i < 3000; i++) entries.add(dataManager.encrypt(1000L + i, "user", "message " + i));
+        //one damaged record in the middle is skipped, not shifted onto a neighbour
+        ChatLog.Entry e = entries.get(1500);
+        e.ciphertext[0] ^= 1;
+        dataManager.appendAll(entries, false);
+
+        DataManager.parallelDecrypt(4, 100);
+        try {
+            List<String> lines = dataManager.getLogs().lines().toList();
+            assertEquals(2999, lines.size());
+            for (int i = 0; i < 2999; i++) assertEquals("message " + (i < 1500 ? i : i + 1), lines.get(i));
+
+            List<String> page = texts(dataManager.readPage(ChatLog.END, 400));
+            assertEquals(400, page.size());
+            for (int i = 0; i < 400; i++) assertEquals("message " + (2999 - i), page.get(i));
+        } finally {
+            DataManager.parallelDecrypt(Runtime.getRuntime().availableProcessors(), DataManager.DEFAULT_PARALLEL_THRESHOLD);
+        }
+    }
+
+    @Test
+    void testReadPage_FullPageDecryptsInParallel() throws Exception {
+        List<ChatLog.Entry> entries = new java.util.ArrayList<>();
+        for (int i = 0; i < 1000; i++) entries.add(dataManager.encrypt(1000L + i, "user", "message " + i));
+        dataManager.appendAll(entries, false);
+
+        //default settings, the biggest page a client can ask for
+        long before = Metrics.counter("logs.parallelDecrypts").sum();
+        List<String> page = texts(dataManager.readPage(ChatLog.END, PacketDispatcher.MAX_PAGE));
+        assertEquals(before + 1, Metrics.counter("logs.parallelDecrypts").sum());
+        assertEquals(PacketDispatcher.MAX_PAGE, page.size());
+        for (int i = 0; i < page.size(); i++) assertEquals("message " + (999 - i), page.get(i));
+    }
+
+    @Test
+    void testGetLogs_RecoversRecordsUnderAnotherRoomsKey() throws Exception {
+        //every room used to share whichever room's key got asked for first
+        Room first = new Room(java.util.UUID.randomUUID(), "000000");
+        DataManager firstDm = new DataManager(first);
+        firstDm.saveMessage("first room");
+        try {
+            ChatLog.Entry damaged = dataManager.encrypt(3000, "carol", "damaged");
+            damaged.ciphertext[0] ^= 1;
+            dataManager.appendAll(List.of(
+                firstDm.encrypt(1000, "alice", "old one"),
+                dataManager.encrypt(2000, "bob", "new one"),
+                damaged,
+                firstDm.encrypt(4000, "alice", "old two")), false);
+            long recovered = Metrics.counter("logs.keysRecovered").sum();
+            long unrecovered = Metrics.counter("logs.keysUnrecovered").sum();
+
+            assertEquals(List.of("old one", "new one", "old two"), dataManager.getLogs().lines().toList());
+            assertEquals(recovered + 2, Metrics.counter("logs.keysRecovered").sum());
+            assertEquals(unrecovered + 1, Metrics.counter("logs.keysUnrecovered").sum());
+            assertTrue(Files.exists(dataManager.getLogDir().toPath().resolve("keys.v2")));
+
+            //rewritten under this room's key in place, so it reads back the same without the other room around
+            deleteTree(firstDm.getLogDir().toPath());
+            DataManager.Page page = new DataManager(room).readPage(ChatLog.END, 10);
+            assertEquals(List.of("old two", "new one", "old one"), texts(page));
+            assertEquals("alice", page.messages.get(0).sender);
+            assertEquals(recovered + 2, Metrics.counter("logs.keysRecovered").sum());
+        } finally {
+            deleteTree(firstDm.getLogDir().toPath());
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static List<String> texts(DataManager.Page page) {
+        return page.messages.stream().map(m -> m.text).toList();
+    }
+
+    private List<Path> segments() throws IOException {
+        Path dir = dataManager.getLogDir().toPath();
+        if (!Files.isDirectory(dir)) return List.of();
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+
+    private String rawSegments() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Path p : segments()) sb.append(new String(Files.readAllBytes(p), StandardCharsets.ISO_8859_1));
+        return sb.toString();
+    }
+
+    //what the old saveMessage wrote
+    private String legacyLine(String message) throws Exception {
+        byte[] nonce = new byte[12];
+        new SecureRandom().nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, dataManager.getAesKey(), new GCMParameterSpec(128, nonce));
+        byte[] ct = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(nonce) + ":" + Base64.getEncoder().encodeToString(ct);
+    }
+
     //functions the same as old cleanup but makes sure to check if dir is empty befor deletion
     @AfterEach
     void cleanUp() {
@@ -128,6 +377,12 @@ public class DataManagerTest {
                 if (dataFile.exists()) {
                     Files.delete(dataFile.toPath());
                 }
+                Path logDir = dataManager.getLogDir().toPath();
+                if (Files.exists(logDir)) {
+                    try (Stream<Path> files = Files.walk(logDir)) {
+                        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+                    }
+                }
                 File dir = dataFile.getParentFile();
                 if (dir.exists()) {
                     //only delete if empty to avoid nuking shared dirs in weird environments
@@ -0,0 +1,169 @@
+package grouph.core;
+
+import org.junit.jupiter.api.Test;
+import proto.Frame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FanOutTest {
+
+    // keeps the id (opcode byte) of every frame it gets
+    private static class RecordingConnection implements Connection {
+        final List<Integer> got = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean closed;
+
+        @Override public void send(Frame frame) { got.add((int) frame.opcode()); }
+        @Override public void close() { closed = true; }
+        @Override public void flushAndClose() { }
+        @Override public boolean isOpen() { return true; }
+        @Override public int queuedFrames() { return 0; }
+        @Override public String remoteAddress() { return "fake"; }
+    }
+
+    private static Frame frame(int id) {
+        byte[] b = new byte[12];
+        b[5] = (byte) id;
+        return Frame.wrap(b);
+    }
+
+    private static void awaitWorkers(Room room) throws InterruptedException {
+        for (int i = 0; i < 500 && room.fanOutPending.get() > 0; i++) Thread.sleep(10);
+        assertEquals(0, room.fanOutPending.get());
+    }
+
+    @Test
+    void everyoneGetsEverythingInOrder() throws Exception {
+        FanOut fanOut = new FanOut(100, 4, 1024, ServerConfig.Overflow.DISCONNECT);
+        try {
+            Room room = new Room(UUID.randomUUID(), "000000", 0, 0, fanOut);
+            List<UserSession> members = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                UserSession u = new UserSession(new RecordingConnection());
+                members.add(u);
+                room.add(u);
+            }
+
+            List<Frame> frames = new ArrayList<>();
+            List<Integer> sent = new ArrayList<>();
+            for (int id = 1; id <= 100; id++) {
+                // halfway through most people leave, the room is small again while the workers are still busy
+                if (id == 50) {
+                    for (UserSession u : members.subList(10, members.size())) room.remove(u);
+                }
+                Frame f = frame(id);
+                frames.add(f);
+                room.broadcast(f);
+                sent.add(id);
+            }
+            awaitWorkers(room);
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals(sent, ((RecordingConnection) members.get(i).conn).got, "member " + i);
+            }
+            assertEquals(sent.subList(0, 49), ((RecordingConnection) members.get(300).conn).got);
+            // the workers let go of every reference they took
+            for (Frame f : frames) assertEquals(1, f.refCount());
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    // one member that holds up its worker until released, see overflow tests
+    private static class StuckConnection extends RecordingConnection {
+        final CountDownLatch stuck = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override public void send(Frame frame) {
+            super.send(frame);
+            stuck.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    // a worker stuck on a member, its queue fills up and the sender still doesnt wait,
+    // that worker's members are dropped as slow consumers instead of silently missing the message
+    @Test
+    void fullShardDisconnectsItsMembers() throws Exception {
+        FanOut fanOut = new FanOut(1, 1, 2, ServerConfig.Overflow.DISCONNECT);
+        StuckConnection c = new StuckConnection();
+        try {
+            Room room = new Room(UUID.randomUUID(), "000000", 0, 0, fanOut);
+            room.add(new UserSession(c));
+            long slow = Metrics.counter("outbound.slowConsumerDisconnects").sum();
+            List<Frame> frames = new ArrayList<>();
+            for (int id = 1; id <= 4; id++) {
+                Frame f = frame(id);
+                frames.add(f);
+                room.broadcast(f);
+                if (id == 1) assertTrue(c.stuck.await(5, TimeUnit.SECONDS)); // worker is busy with 1
+                if (id < 4) assertFalse(c.closed);
+            }
+            // 2 and 3 are queued, 4 had nowhere to go
+            assertTrue(c.closed);
+            assertEquals(slow + 1, Metrics.counter("outbound.slowConsumerDisconnects").sum());
+            c.release.countDown();
+            awaitWorkers(room);
+            assertEquals(List.of(1, 2, 3), c.got);
+            for (Frame f : frames) assertEquals(1, f.refCount());
+        } finally {
+            c.release.countDown();
+            fanOut.shutdown();
+        }
+    }
+
+    // same but drop_oldest, the oldest waiting batch makes room and nobody gets kicked
+    @Test
+    void fullShardDropsItsOldestBatch() throws Exception {
+        FanOut fanOut = new FanOut(1, 1, 2, ServerConfig.Overflow.DROP_OLDEST);
+        StuckConnection c = new StuckConnection();
+        try {
+            Room room = new Room(UUID.randomUUID(), "000000", 0, 0, fanOut);
+            room.add(new UserSession(c));
+            long dropped = Metrics.counter("rooms.fanOutDropped").sum();
+            List<Frame> frames = new ArrayList<>();
+            for (int id = 1; id <= 4; id++) {
+                Frame f = frame(id);
+                frames.add(f);
+                room.broadcast(f);
+                if (id == 1) assertTrue(c.stuck.await(5, TimeUnit.SECONDS));
+            }
+            assertEquals(dropped + 1, Metrics.counter("rooms.fanOutDropped").sum());
+            assertFalse(c.closed);
+            c.release.countDown();
+            awaitWorkers(room);
+            assertEquals(List.of(1, 3, 4), c.got);
+            for (Frame f : frames) assertEquals(1, f.refCount());
+        } finally {
+            c.release.countDown();
+            fanOut.shutdown();
+        }
+    }
+
+    @Test
+    void smallRoomsStayInline() {
+        FanOut fanOut = new FanOut(100, 4, 1024, ServerConfig.Overflow.DISCONNECT);
+        try {
+            Room room = new Room(UUID.randomUUID(), "000000", 0, 0, fanOut);
+            RecordingConnection c = new RecordingConnection();
+            room.add(new UserSession(c));
+            Frame f = frame(7);
+            room.broadcast(f);
+            // no waiting, it went out on this thread
+            assertEquals(List.of(7), c.got);
+            assertEquals(0, room.fanOutPending.get());
+            f.release();
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package grouph.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryReadsTest {
+
+    @Test
+    void oneSessionsReadsRunInOrder() throws Exception {
+        HistoryReads reads = new HistoryReads(4, 64);
+        try {
+            UserSession s = new UserSession(null);
+            List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(20);
+            for (int i = 0; i < 20; i++) {
+                int n = i;
+                assertTrue(reads.submit(s, () -> {
+                    ran.add(n);
+                    done.countDown();
+                }));
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 20; i++) assertEquals(i, ran.get(i));
+        } finally {
+            reads.shutdown();
+        }
+    }
+
+    @Test
+    void fullQueueSaysNoWithoutWaiting() throws Exception {
+        HistoryReads reads = new HistoryReads(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        try {
+            UserSession s = new UserSession(null);
+            assertTrue(reads.submit(s, () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertTrue(reads.submit(s, () -> { })); // waits in the queue
+            assertFalse(reads.submit(s, () -> { }));
+        } finally {
+            release.countDown();
+            reads.shutdown();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package grouph.core;
+
+import org.junit.jupiter.api.Test;
+import proto.Frame;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IdleMonitorTest {
+
+    // remembers what happened to it instead of talking to a socket
+    private static final class FakeConnection implements Connection {
+        int sent;
+        boolean flushAndClose;
+        boolean closed;
+
+        @Override public void send(Frame frame) { sent++; }
+        @Override public void close() { closed = true; }
+        @Override public void flushAndClose() { flushAndClose = true; }
+        @Override public boolean isOpen() { return !closed; }
+        @Override public int queuedFrames() { return 0; }
+        @Override public String remoteAddress() { return "fake"; }
+    }
+
+    private static IdleMonitor monitor(int timeoutSec) {
+        return new IdleMonitor(ServerConfig.of(Map.of(
+            "heartbeat.idleTimeoutSec", String.valueOf(timeoutSec),
+            "heartbeat.tickMs", "1000"
+        )));
+    }
+
+    private static UserSession session(long lastSeenMs) {
+        UserSession s = new UserSession(new FakeConnection());
+        s.lastSeenMs.set(lastSeenMs);
+        return s;
+    }
+
+    @Test
+    void evictsOnlyWhoeverWentQuiet() {
+        long t0 = 1_000_000;
+        IdleMonitor idle = monitor(30);
+        UserSession quiet = session(t0);
+        UserSession chatty = session(t0);
+        idle.track(quiet);
+        idle.track(chatty);
+        assertEquals(0, idle.advance(t0));
+
+        // chatty keeps sending, its deadline moves on each time the wheel gets to it
+        for (long t = t0 + 1000; t < t0 + 29_000; t += 1000) {
+            chatty.lastSeenMs.set(t);
+            assertEquals(0, idle.advance(t));
+        }
+        assertEquals(1, idle.advance(t0 + 30_000));
+
+        FakeConnection q = (FakeConnection) quiet.conn;
+        assertTrue(q.flushAndClose);
+        assertEquals(1, q.sent, "should be told why");
+        assertFalse(((FakeConnection) chatty.conn).flushAndClose);
+
+        // didnt actually close within the grace period, so it gets closed hard
+        idle.advance(t0 + 36_000);
+        assertTrue(q.closed);
+        assertEquals(1, idle.size());
+    }
+
+    @Test
+    void closedSessionsJustFallOff() {
+        long t0 = 5_000_000;
+        IdleMonitor idle = monitor(10);
+        UserSession s = session(t0);
+        idle.track(s);
+        idle.advance(t0);
+        s.conn.close();
+
+        assertEquals(0, idle.advance(t0 + 20_000));
+        assertEquals(0, idle.size());
+        assertEquals(0, ((FakeConnection) s.conn).sent);
+    }
+
+    @Test
+    void catchesUpAfterFallingBehind() {
+        long t0 = 9_000_000;
+        IdleMonitor idle = monitor(10);
+        for (int i = 0; i < 100; i++) idle.track(session(t0 + i * 100));
+        idle.advance(t0);
+
+        // one advance a long way later still visits every bucket it skipped
+        assertEquals(100, idle.advance(t0 + 60_000));
+    }
+
+    @Test
+    void disabled() {
+        IdleMonitor idle = monitor(0);
+        idle.track(session(0));
+        assertEquals(0, idle.size());
+    }
+}
@@ -0,0 +1,133 @@
+package grouph.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogRetentionTest {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private Path root;
+    private RoomRegistry registry;
+    private RoomLogs logs;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        root = Files.createTempDirectory("grouph-retention");
+        logs = new RoomLogs(4, ChatLog.DEFAULT_SEGMENT_BYTES);
+        registry = new RoomRegistry(logs);
+    }
+
+    @AfterEach
+    void cleanUp() throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private LogRetention retention(String... kv) {
+        Map<String, String> m = new java.util.HashMap<>();
+        for (int i = 0; i < kv.length; i += 2) m.put(kv[i], kv[i + 1]);
+        m.put("logs.segmentBytes", "4096");
+        m.put("retention.ioBytesPerSec", "0");
+        return new LogRetention(registry, logs, ServerConfig.of(m));
+    }
+
+    // count records with timestamps from firstTs a minute apart, in a log with small segments
+    private ChatLog log(UUID roomId, int count, long firstTs) throws IOException {
+        ChatLog log = new ChatLog(root.resolve(roomId.toString()), 4096, 8, false);
+        List<ChatLog.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new ChatLog.Entry(firstTs + i * 60_000L, 0, "user", new byte[12], ("message " + i).getBytes()));
+        }
+        log.appendAll(entries);
+        return log;
+    }
+
+    private static List<String> texts(ChatLog log) throws IOException {
+        List<String> out = new ArrayList<>();
+        for (ChatLog.Entry e : log.readAll()) out.add(new String(e.ciphertext));
+        return out;
+    }
+
+    @Test
+    void maxMessagesKeepsTheNewest() throws IOException {
+        UUID id = registry.getOrCreateByCode("000001").roomId;
+        ChatLog log = log(id, 1000, System.currentTimeMillis());
+        int before = log.segments().size();
+
+        assertTrue(retention("retention.maxMessages", "300").runOnce(root) > 0);
+
+        List<String> left = texts(log);
+        assertEquals(300, left.size());
+        assertEquals("message 700", left.get(0));
+        assertEquals("message 999", left.get(299));
+        assertTrue(log.segments().size() < before);
+        // paging still works over the rewritten segment
+        assertEquals(300, log.readBefore(ChatLog.END, 1000).entries.size());
+    }
+
+    @Test
+    void maxAgeDropsOldMessages() throws IOException {
+        UUID id = registry.getOrCreateByCode("000002").roomId;
+        long start = System.currentTimeMillis() - 10 * DAY;
+        ChatLog log = log(id, 600, start);
+        List<ChatLog.Entry> recent = new ArrayList<>();
+        for (int i = 0; i < 400; i++) recent.add(new ChatLog.Entry(System.currentTimeMillis(), 0, null, new byte[12], "new".getBytes()));
+        log.appendAll(recent);
+
+        retention("retention.maxAgeDays", "5").runOnce(root);
+
+        List<String> left = texts(log);
+        assertEquals(400, left.size());
+        assertTrue(left.stream().allMatch("new"::equals));
+    }
+
+    @Test
+    void currentSegmentIsNeverTouched() throws IOException {
+        UUID id = registry.getOrCreateByCode("000003").roomId;
+        ChatLog log = log(id, 10, System.currentTimeMillis() - 100 * DAY);
+        assertEquals(1, log.segments().size());
+
+        assertEquals(0, retention("retention.maxMessages", "1", "retention.maxAgeDays", "1").runOnce(root));
+        assertEquals(10, texts(log).size());
+    }
+
+    @Test
+    void deadRoomsAreDeleted() throws IOException {
+        long old = System.currentTimeMillis() - 40 * DAY;
+        UUID dead = UUID.randomUUID();
+        ChatLog deadLog = log(dead, 10, old);
+        for (Path seg : deadLog.segments()) Files.setLastModifiedTime(seg, FileTime.fromMillis(old));
+        Path legacy = Files.writeString(root.resolve(UUID.randomUUID() + ".txt"), "abc\n");
+        Files.setLastModifiedTime(legacy, FileTime.fromMillis(old));
+        // still in the registry, so however old its log is it stays
+        UUID live = registry.getOrCreateByCode("000004").roomId;
+        ChatLog liveLog = log(live, 10, old);
+        for (Path seg : liveLog.segments()) Files.setLastModifiedTime(seg, FileTime.fromMillis(old));
+        // gone, but talked recently
+        UUID recent = UUID.randomUUID();
+        log(recent, 10, System.currentTimeMillis());
+
+        retention("retention.deadRoomDays", "30").runOnce(root);
+
+        assertFalse(Files.exists(root.resolve(dead.toString())));
+        assertFalse(Files.exists(legacy));
+        assertEquals(10, texts(liveLog).size());
+        assertTrue(Files.exists(root.resolve(recent.toString())));
+    }
+}
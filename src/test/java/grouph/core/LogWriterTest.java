@@ -0,0 +1,73 @@
+package grouph.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogWriterTest {
+    private Path home;
+    private String oldHome;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        oldHome = System.getProperty("user.home");
+        home = Files.createTempDirectory("grouph-writer");
+        System.setProperty("user.home", home.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        System.setProperty("user.home", oldHome);
+        try (Stream<Path> files = Files.walk(home)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static ServerConfig config(String fsync) {
+        return ServerConfig.of(Map.of("logs.writers", "2", "logs.batch", "16", "logs.fsync", fsync));
+    }
+
+    @Test
+    void everyRoomKeepsItsOrder() throws Exception {
+        RoomRegistry registry = new RoomRegistry();
+        LogWriter writer = new LogWriter(registry, config("batch"));
+        Room a = registry.getOrCreateByCode("111111");
+        Room b = registry.getOrCreateByCode("222222");
+
+        List<String> expectA = new ArrayList<>(), expectB = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            assertTrue(writer.submit(a, "alice", "a" + i));
+            assertTrue(writer.submit(b, "bob", "b" + i));
+            expectA.add("a" + i);
+            expectB.add("b" + i);
+        }
+        writer.shutdown(); // drains before stopping
+
+        assertEquals(expectA, new DataManager(a).getLogs().lines().toList());
+        assertEquals(expectB, new DataManager(b).getLogs().lines().toList());
+    }
+
+    @Test
+    void intervalModeStillWritesEverything() throws Exception {
+        RoomRegistry registry = new RoomRegistry();
+        LogWriter writer = new LogWriter(registry, config("interval"));
+        Room a = registry.getOrCreateByCode("333333");
+        for (int i = 0; i < 50; i++) assertTrue(writer.submit(a, null, "m" + i));
+        writer.shutdown();
+
+        List<String> lines = new DataManager(a).getLogs().lines().toList();
+        assertEquals(50, lines.size());
+        assertEquals("m49", lines.get(49));
+    }
+}
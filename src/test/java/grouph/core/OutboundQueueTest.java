@@ -0,0 +1,119 @@
+package grouph.core;
+
+import org.junit.jupiter.api.Test;
+import proto.Frame;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboundQueueTest {
+
+    private static OutboundQueue queue(int capacity, String overflow) {
+        return queue(capacity, overflow, "test");
+    }
+
+    private static OutboundQueue queue(int capacity, String overflow, String owner) {
+        return new OutboundQueue(ServerConfig.of(Map.of(
+            "outbound.capacity", String.valueOf(capacity),
+            "outbound.overflow", overflow
+        )), owner);
+    }
+
+    // opcode byte doubles as an id so we can tell frames apart
+    private static Frame frame(int id) {
+        byte[] b = new byte[12];
+        b[5] = (byte) id;
+        return Frame.wrap(b);
+    }
+
+    @Test
+    void dropOldest_keepsNewestFrames() {
+        OutboundQueue q = queue(2, "drop_oldest");
+        assertTrue(q.offer(frame(1)));
+        assertTrue(q.offer(frame(2)));
+        assertTrue(q.offer(frame(3))); // pushes 1 out
+
+        assertEquals(2, q.size());
+        assertEquals(2, q.poll().opcode());
+        assertEquals(3, q.poll().opcode());
+        assertNull(q.poll());
+    }
+
+    @Test
+    void disconnect_refusesWhenFull() {
+        OutboundQueue q = queue(2, "disconnect");
+        assertTrue(q.offer(frame(1)));
+        assertTrue(q.offer(frame(2)));
+        assertFalse(q.offer(frame(3)), "full queue should tell the caller to disconnect");
+
+        // nothing already queued is lost
+        assertEquals(1, q.poll().opcode());
+        assertEquals(2, q.poll().opcode());
+    }
+
+    @Test
+    void queueHoldsItsOwnReference() {
+        OutboundQueue q = queue(1, "drop_oldest");
+        Frame a = frame(1);
+        Frame b = frame(2);
+        q.offer(a);
+        assertEquals(2, a.refCount(), "queue should retain");
+        q.offer(b); // drops a
+        assertEquals(1, a.refCount(), "dropped frame should be released");
+        q.clear();
+        assertEquals(1, b.refCount(), "cleared frame should be released");
+    }
+
+    @Test
+    void highWater_tracksDeepestPoint() {
+        OutboundQueue q = queue(8, "disconnect");
+        for (int i = 0; i < 5; i++) q.offer(frame(i));
+        for (int i = 0; i < 5; i++) q.poll();
+        q.offer(frame(9));
+
+        assertEquals(1, q.size());
+        assertEquals(5, q.highWater());
+        q.clear();
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    void deepest_namesTheSlowestClients() {
+        OutboundQueue slow = queue(1000, "disconnect", "slow-client");
+        OutboundQueue slower = queue(1000, "disconnect", "slower-client");
+        for (int i = 0; i < 600; i++) slow.offer(frame(1));
+        for (int i = 0; i < 700; i++) slower.offer(frame(1));
+        for (int i = 0; i < 200; i++) slower.poll();
+
+        // most waiting first, high water after that
+        assertTrue(OutboundQueue.deepest(2).startsWith("[slow-client 600/600, slower-client 500/700"),
+            OutboundQueue.deepest(2));
+        assertTrue(Metrics.details().get("outbound.deepest").contains("slow-client 600/600"));
+        // a closed connection drops out
+        slow.clear();
+        slower.clear();
+        assertFalse(OutboundQueue.deepest(100).contains("slow"));
+    }
+
+    @Test
+    void timedPoll_wakesUpWhenAFrameArrives() throws Exception {
+        OutboundQueue q = queue(4, "disconnect");
+        assertNull(q.poll(1_000_000), "nothing queued, should time out");
+
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            q.offer(frame(7));
+        });
+        t.start();
+        long start = System.nanoTime();
+        Frame f = q.poll(5_000_000_000L);
+        assertNotNull(f);
+        assertEquals(7, f.opcode());
+        assertTrue(System.nanoTime() - start < 4_000_000_000L, "should not wait out the whole timeout");
+        t.join();
+    }
+}
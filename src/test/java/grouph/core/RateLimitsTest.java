@@ -0,0 +1,126 @@
+package grouph.core;
+
+import org.junit.jupiter.api.Test;
+import proto.Op;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimitsTest {
+    private static final long SEC = 1_000_000_000L;
+
+    @Test
+    void burstThenRate() {
+        RateLimits.Rate rate = new RateLimits.Rate(10, 5);
+        AtomicLongArray b = RateLimits.buckets();
+        long t0 = 123 * SEC;
+        for (int i = 0; i < 5; i++) assertTrue(RateLimits.take(b, 0, rate, t0), "token " + i);
+        assertFalse(RateLimits.take(b, 0, rate, t0));
+        // a tenth of a second buys one more
+        assertFalse(RateLimits.take(b, 0, rate, t0 + SEC / 20));
+        assertTrue(RateLimits.take(b, 0, rate, t0 + SEC / 10));
+        assertFalse(RateLimits.take(b, 0, rate, t0 + SEC / 10));
+        // left alone long enough its full again, but no fuller
+        long later = t0 + 60 * SEC;
+        for (int i = 0; i < 5; i++) assertTrue(RateLimits.take(b, 0, rate, later));
+        assertFalse(RateLimits.take(b, 0, rate, later));
+        // other slots are their own buckets
+        assertTrue(RateLimits.take(b, 1, rate, t0));
+    }
+
+    @Test
+    void giveBackReturnsOneToken() {
+        RateLimits.Rate rate = new RateLimits.Rate(10, 3);
+        AtomicLongArray b = RateLimits.buckets();
+        long t0 = 7 * SEC;
+        // nothing taken, nothing to give back
+        RateLimits.giveBack(b, 0, rate, t0);
+        for (int i = 0; i < 3; i++) assertTrue(RateLimits.take(b, 0, rate, t0));
+        assertFalse(RateLimits.take(b, 0, rate, t0));
+
+        RateLimits.giveBack(b, 0, rate, t0);
+        assertTrue(RateLimits.take(b, 0, rate, t0));
+        assertFalse(RateLimits.take(b, 0, rate, t0));
+
+        // giving back more than was taken stops at full
+        for (int i = 0; i < 10; i++) RateLimits.giveBack(b, 0, rate, t0);
+        for (int i = 0; i < 3; i++) assertTrue(RateLimits.take(b, 0, rate, t0));
+        assertFalse(RateLimits.take(b, 0, rate, t0));
+    }
+
+    @Test
+    void busyRoomDoesntCostTheSender() {
+        RateLimits limits = ServerConfig.of(Map.of(
+            "limits.chat_send", "1",
+            "limits.chat_send.burst", "2",
+            "limits.room.chat_send", "1",
+            "limits.room.chat_send.burst", "1"
+        )).rateLimits;
+        UserSession s = new UserSession(null);
+        Room room = new Room(java.util.UUID.randomUUID(), "000000");
+        assertTrue(limits.allow(room, Op.CHAT_SEND)); // someone else used the room's only token
+
+        // what the dispatcher does: the session says yes, the room says no, the session gets its token back
+        assertTrue(limits.allow(s, Op.CHAT_SEND));
+        assertFalse(limits.allow(room, Op.CHAT_SEND));
+        limits.giveBack(s, Op.CHAT_SEND);
+        assertTrue(limits.allow(s, Op.CHAT_SEND));
+        assertTrue(limits.allow(s, Op.CHAT_SEND));
+        assertFalse(limits.allow(s, Op.CHAT_SEND));
+    }
+
+    @Test
+    void racingThreadsGetExactlyTheBurst() throws Exception {
+        RateLimits.Rate rate = new RateLimits.Rate(1, 100);
+        AtomicLongArray b = RateLimits.buckets();
+        long now = 42 * SEC;
+        AtomicInteger granted = new AtomicInteger();
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread th = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                    if (RateLimits.take(b, 0, rate, now)) granted.incrementAndGet();
+                }
+            });
+            th.start();
+            threads.add(th);
+        }
+        go.countDown();
+        for (Thread th : threads) th.join();
+        assertEquals(100, granted.get());
+    }
+
+    @Test
+    void configuredPerOpcode() {
+        RateLimits limits = ServerConfig.of(Map.of(
+            "limits.chat_send", "1",
+            "limits.chat_send.burst", "2",
+            "limits.join_room", "0"
+        )).rateLimits;
+        UserSession s = new UserSession(null);
+        assertTrue(limits.allow(s, Op.CHAT_SEND));
+        assertTrue(limits.allow(s, Op.CHAT_SEND));
+        assertFalse(limits.allow(s, Op.CHAT_SEND));
+        // 0 is unlimited, and anything not on the list is never limited
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limits.allow(s, Op.JOIN_ROOM));
+            assertTrue(limits.allow(s, Op.HEARTBEAT));
+        }
+        // default create_room burst
+        int created = 0;
+        while (limits.allow(s, Op.CREATE_ROOM)) created++;
+        assertEquals(5, created);
+    }
+}
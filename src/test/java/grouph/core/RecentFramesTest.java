@@ -0,0 +1,103 @@
+package grouph.core;
+
+import org.junit.jupiter.api.Test;
+import proto.Frame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecentFramesTest {
+
+    // first byte of the payload doubles as an id so we can tell frames apart
+    private static Frame frame(int id, int length) {
+        byte[] b = new byte[length];
+        b[5] = (byte) id;
+        return Frame.wrap(b);
+    }
+
+    private static List<Integer> ids(List<Frame> frames) {
+        List<Integer> out = new ArrayList<>();
+        for (Frame f : frames) {
+            out.add((int) f.opcode());
+            f.release();
+        }
+        return out;
+    }
+
+    @Test
+    void keepsTheLastFewOldestFirst() {
+        RecentFrames recent = new RecentFrames(3, 1024);
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            Frame f = frame(i, 12);
+            frames.add(f);
+            recent.add(f);
+            f.release(); // the room's broadcast is done with it
+        }
+
+        assertEquals(List.of(3, 4, 5), ids(recent.snapshot()));
+        assertEquals(0, frames.get(0).refCount(), "pushed out frames are released");
+        assertEquals(1, frames.get(4).refCount(), "kept frames are held once");
+        recent.clear();
+        assertEquals(0, frames.get(4).refCount());
+        assertEquals(0, recent.bytes());
+    }
+
+    @Test
+    void byteBudgetDropsOldest() {
+        RecentFrames recent = new RecentFrames(10, 100);
+        for (int i = 1; i <= 4; i++) recent.add(frame(i, 40));
+        assertEquals(List.of(3, 4), ids(recent.snapshot()));
+        assertEquals(80, recent.bytes());
+
+        // bigger than the whole budget, not kept at all
+        recent.add(frame(9, 101));
+        assertEquals(List.of(3, 4), ids(recent.snapshot()));
+    }
+
+    @Test
+    void disabled() {
+        RecentFrames recent = new RecentFrames(0, 1024);
+        Frame f = frame(1, 12);
+        recent.add(f);
+        assertTrue(recent.snapshot().isEmpty());
+        assertEquals(1, f.refCount());
+    }
+
+    @Test
+    void concurrentAddsReleaseEverythingTheyPushOut() throws Exception {
+        RecentFrames recent = new RecentFrames(16, 1 << 20);
+        int threads = 4, each = 5000;
+        List<Frame> all = new ArrayList<>();
+        for (int i = 0; i < threads * each; i++) all.add(frame(i, 12));
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int from = t * each;
+            Thread w = new Thread(() -> {
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = from; i < from + each; i++) {
+                    recent.add(all.get(i));
+                    all.get(i).release();
+                    if (i % 7 == 0) recent.snapshot().forEach(Frame::release);
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        go.countDown();
+        for (Thread w : workers) w.join();
+
+        assertTrue(ids(recent.snapshot()).size() <= 16);
+        recent.clear();
+        for (Frame f : all) assertEquals(0, f.refCount());
+        assertEquals(0, recent.bytes());
+    }
+}
@@ -0,0 +1,131 @@
+package grouph.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RoomLogsTest {
+    private Path home;
+    private String oldHome;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        oldHome = System.getProperty("user.home");
+        home = Files.createTempDirectory("grouph-logs");
+        System.setProperty("user.home", home.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        System.setProperty("user.home", oldHome);
+        try (Stream<Path> files = Files.walk(home)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static Room room() {
+        return new Room(UUID.randomUUID(), "000000");
+    }
+
+    // what LogWriter does with a batch
+    private static void save(RoomLogs logs, Room r, String sender, String message) throws Exception {
+        DataManager dm = logs.acquire(r);
+        try {
+            dm.saveMessage(sender, message);
+        } finally {
+            logs.release(r, dm);
+        }
+    }
+
+    @Test
+    void sameRoomGetsSameWriter() {
+        RoomLogs logs = new RoomLogs(4, ChatLog.DEFAULT_SEGMENT_BYTES);
+        Room r = room();
+        DataManager first = logs.acquire(r);
+        assertSame(first, logs.acquire(r));
+        assertEquals(1, logs.size());
+        logs.release(r, first);
+        logs.release(r, first);
+    }
+
+    @Test
+    void leastRecentlyUsedIdleRoomIsEvicted() throws Exception {
+        RoomLogs logs = new RoomLogs(2, ChatLog.DEFAULT_SEGMENT_BYTES);
+        Room a = room(), b = room(), c = room();
+        save(logs, a, "alice", "one");
+        DataManager da = logs.acquire(a);
+        logs.release(a, da);
+        save(logs, b, "bob", "hi");
+        save(logs, c, "carol", "hey"); // pushes a out
+
+        assertEquals(2, logs.size());
+        DataManager again = logs.acquire(a);
+        assertNotSame(da, again, "a should have been evicted and get a fresh writer");
+        logs.release(a, again);
+        save(logs, a, "alice", "two");
+        assertEquals(List.of("one", "two"), new DataManager(a).getLogs().lines().toList());
+    }
+
+    @Test
+    void roomInUseIsNeverEvicted() throws Exception {
+        RoomLogs logs = new RoomLogs(1, ChatLog.DEFAULT_SEGMENT_BYTES);
+        Room a = room(), b = room();
+        DataManager da = logs.acquire(a);
+        da.saveMessage("alice", "one");
+        save(logs, b, "bob", "hi"); // over the cap, but a is busy so b is the one that goes
+
+        // still the only DataManager for a, nobody else got a second one to append behind its back
+        DataManager again = logs.acquire(a);
+        assertSame(da, again);
+        logs.release(a, again);
+        da.saveMessage("alice", "two");
+        logs.release(a, da);
+        assertEquals(1, logs.size());
+        assertEquals(List.of("one", "two"), new DataManager(a).getLogs().lines().toList());
+    }
+
+    @Test
+    void closedRoomGetsNothingHeldOpen() throws Exception {
+        RoomLogs logs = new RoomLogs(4, ChatLog.DEFAULT_SEGMENT_BYTES);
+        RoomRegistry registry = new RoomRegistry(logs);
+        Room r = registry.getOrCreateByCode("654321");
+        DataManager busy = registry.acquireLogs(r);
+        registry.removeIfEmpty(r); // closed while a history read still has it
+        assertEquals(0, logs.size());
+
+        // a message queued before the close still lands, without a log being cached for the dead room
+        DataManager late = registry.acquireLogs(r);
+        assertNotSame(busy, late);
+        late.saveMessage("alice", "last words");
+        registry.releaseLogs(r, late);
+        assertEquals(0, logs.size());
+
+        assertEquals(List.of("last words"), busy.getLogs().lines().toList());
+        registry.releaseLogs(r, busy);
+        busy.saveMessage("alice", "after close"); // closed ones still write, opening the file each time
+        assertEquals(List.of("last words", "after close"), new DataManager(r).getLogs().lines().toList());
+    }
+
+    @Test
+    void removingEmptyRoomClosesItsLog() throws Exception {
+        RoomLogs logs = new RoomLogs(4, ChatLog.DEFAULT_SEGMENT_BYTES);
+        RoomRegistry registry = new RoomRegistry(logs);
+        Room r = registry.getOrCreateByCode("123456");
+        save(logs, r, "alice", "bye");
+        assertEquals(1, logs.size());
+
+        registry.removeIfEmpty(r);
+        assertEquals(0, logs.size());
+        assertEquals(List.of("bye"), new DataManager(r).getLogs().lines().toList());
+    }
+}
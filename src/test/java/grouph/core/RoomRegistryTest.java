@@ -0,0 +1,165 @@
+package grouph.core;
+
+import org.junit.jupiter.api.Test;
+import proto.Frame;
+import proto.Op;
+import proto.Packets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RoomRegistryTest {
+
+    private static final class FakeConnection implements Connection {
+        @Override public void send(Frame frame) { }
+        @Override public void close() { }
+        @Override public void flushAndClose() { }
+        @Override public boolean isOpen() { return true; }
+        @Override public int queuedFrames() { return 0; }
+        @Override public String remoteAddress() { return "fake"; }
+    }
+
+    private static final class RecordingConnection implements Connection {
+        final List<Frame> got = Collections.synchronizedList(new ArrayList<>());
+
+        @Override public void send(Frame frame) { got.add(frame); }
+        @Override public void close() { }
+        @Override public void flushAndClose() { }
+        @Override public boolean isOpen() { return true; }
+        @Override public int queuedFrames() { return 0; }
+        @Override public String remoteAddress() { return "fake"; }
+    }
+
+    private static RoomRegistry registry() {
+        return new RoomRegistry(new RoomLogs(4, ChatLog.DEFAULT_SEGMENT_BYTES),
+            RecentFrames.DEFAULT_FRAMES, RecentFrames.DEFAULT_BYTES, new Random(42), null);
+    }
+
+    @Test
+    void createdCodesNeverCollide() {
+        RoomRegistry registry = registry();
+        Room taken = registry.getOrCreateByCode("123456");
+        Set<String> codes = new HashSet<>();
+        for (int i = 0; i < 50_000; i++) {
+            Room r = registry.create();
+            assertTrue(codes.add(r.roomCode), "handed out twice: " + r.roomCode);
+            assertNotEquals(taken, r);
+            assertSame(r, registry.getByCode(r.roomCode));
+            assertSame(r, registry.getById(r.roomId));
+        }
+        assertEquals(50_001, registry.size());
+    }
+
+    @Test
+    void lastOneOutClosesTheRoom() {
+        RoomRegistry registry = registry();
+        Room room = registry.create();
+        UserSession a = new UserSession(new FakeConnection());
+        UserSession b = new UserSession(new FakeConnection());
+        assertTrue(registry.join(room, a));
+        assertTrue(registry.join(room, b));
+
+        registry.leave(room, a);
+        assertSame(room, registry.getByCode(room.roomCode));
+        registry.leave(room, b);
+        assertNull(registry.getByCode(room.roomCode));
+        assertNull(registry.getById(room.roomId));
+        // too late, whoever looked it up before it closed has to go find another
+        assertFalse(registry.join(room, a));
+        assertEquals(0, registry.size());
+    }
+
+    // lots of threads creating, joining and leaving a small set of rooms so closes and joins keep colliding
+    // nobody can ever be a member of a room thats no longer in the registry
+    @Test
+    void joinsAndClosesRacing() throws Exception {
+        RoomRegistry registry = registry();
+        int threads = 8;
+        int rounds = 20_000;
+        List<String> codes = new ArrayList<>();
+        for (int i = 0; i < 16; i++) codes.add(String.format("%06d", 900_000 + i));
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            Thread w = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                UserSession me = new UserSession(new FakeConnection());
+                try {
+                    go.await();
+                    for (int i = 0; i < rounds; i++) {
+                        Room room = rnd.nextInt(8) == 0
+                            ? registry.create()
+                            : registry.getOrCreateByCode(codes.get(rnd.nextInt(codes.size())));
+                        if (!registry.join(room, me)) {
+                            assertTrue(room.closed);
+                            continue;
+                        }
+                        // we're in it, so it has to still be there
+                        assertSame(room, registry.getByCode(room.roomCode));
+                        assertSame(room, registry.getById(room.roomId));
+                        assertFalse(room.closed);
+                        registry.leave(room, me);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            w.start();
+            workers.add(w);
+        }
+        go.countDown();
+        for (Thread w : workers) w.join();
+
+        assertTrue(failures.isEmpty(), () -> failures.peek().toString());
+        assertEquals(0, registry.size(), "everyone left, every room should have closed");
+    }
+
+    @Test
+    void chatRacingAJoinArrivesOnceAndInOrder() throws Exception {
+        RoomRegistry registry = registry();
+        for (int round = 0; round < 500; round++) {
+            Room room = registry.create();
+            UserSession talker = new UserSession(new FakeConnection());
+            assertTrue(registry.join(room, talker));
+            List<Frame> sent = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch started = new CountDownLatch(1);
+            Thread chat = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    Frame f = Frame.of(Packets.chatBroadcast("talker", "m" + i));
+                    sent.add(f);
+                    room.broadcastChat(f);
+                    if (i == 20) started.countDown();
+                }
+            });
+            chat.start();
+            started.await();
+
+            RecordingConnection conn = new RecordingConnection();
+            UserSession joiner = new UserSession(conn);
+            UserSession[] others = room.admit(joiner, () -> registry.join(room, joiner),
+                Packets.joinRoomAck(room.roomId, room.roomCode));
+            chat.join();
+
+            assertArrayEquals(new UserSession[] { talker }, others);
+            assertEquals(Op.JOIN_ROOM_ACK, conn.got.get(0).opcode());
+            // backfill then live has to be one unbroken run of what was said, right up to the last message
+            List<Frame> got = conn.got.subList(1, conn.got.size());
+            assertFalse(got.isEmpty());
+            int from = sent.indexOf(got.get(0));
+            assertEquals(sent.subList(from, sent.size()), got);
+            registry.leave(room, talker);
+            registry.leave(room, joiner);
+        }
+    }
+}
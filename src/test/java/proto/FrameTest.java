@@ -0,0 +1,42 @@
+package proto;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class FrameTest {
+    @Test
+    void pooledFrame_decodesLikeHeapFrame() throws IOException {
+        Packet p = Packets.chatBroadcast("alice", "hey there");
+        FramePool pool = new FramePool(4);
+        Frame pooled = pool.encode(p);
+        Frame heap = Frame.of(p);
+
+        assertEquals(heap.length(), pooled.length());
+        assertEquals(heap.buffer(), pooled.buffer());
+        assertEquals(Op.CHAT_BROADCAST, pooled.opcode());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pooled.writeTo(out);
+        Packet r = Packet.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("hey there", r.getStr(T.MESSAGE));
+    }
+
+    @Test
+    void lastRelease_returnsBufferToPool() {
+        FramePool pool = new FramePool(4);
+        Frame f = pool.encode(Packets.heartbeat());
+        f.retain(); // a second recipient
+        f.release();
+        assertEquals(0, pool.pooled(), "still referenced");
+        f.release();
+        assertEquals(1, pool.pooled(), "back in the pool");
+
+        assertThrows(IllegalStateException.class, f::release);
+        assertThrows(IllegalStateException.class, f::retain);
+    }
+}
@@ -0,0 +1,111 @@
+package proto;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+final class PacketViewTest {
+    @Test
+    void view_readsSameFieldsAsPacket() throws IOException {
+        UUID id = UUID.randomUUID();
+        Packet p = Packets.chatBroadcast("alice", "hey there \uD83D\uDC4B")
+            .addU64(T.TIMESTAMPMS, 1234567890123L)
+            .addBytes(T.ROOM_ID, Packets.uuidToBytes(id));
+
+        PacketView v = new PacketView();
+        ByteBuffer buf = ByteBuffer.wrap(p.toBytes());
+        assertTrue(v.decode(buf));
+        assertFalse(buf.hasRemaining());
+
+        assertEquals(Op.CHAT_BROADCAST, v.opcode);
+        assertEquals("alice", v.getStr(T.USERNAME));
+        assertEquals("hey there \uD83D\uDC4B", v.getStr(T.MESSAGE));
+        assertEquals(1234567890123L, v.getU64(T.TIMESTAMPMS, -1));
+        assertEquals(id, Packets.bytesToUuid(v.getBytes(T.ROOM_ID)));
+        assertTrue(Packets.validateContentLen(v));
+        assertNull(v.getStr(T.REASON));
+        assertEquals(-1, v.getU32(T.ERROR_CODE, -1));
+
+        Packet copy = v.toPacket();
+        assertArrayEquals(p.toBytes(), copy.toBytes());
+    }
+
+    @Test
+    void view_validateContentLen_failsWhenTampered() throws IOException {
+        Packet p = Packets.chatSend("hi");
+        p.tlvs.replaceAll(t -> t.type == T.CONTENT_LEN ? Packet.Tlv.ofU32(T.CONTENT_LEN, 999) : t);
+        PacketView v = new PacketView();
+        assertTrue(v.decode(ByteBuffer.wrap(p.toBytes())));
+        assertFalse(Packets.validateContentLen(v));
+    }
+
+    @Test
+    void decoder_readsBackToBackFramesAndGrows() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String big = "x".repeat(10_000); // bigger than the starting buffer
+        Packets.write(out, Packets.chatSend("small"));
+        Packets.write(out, Packets.chatSend(big));
+        Packets.write(out, Packets.heartbeat());
+
+        PacketDecoder d = new PacketDecoder(64, FrameLimits.LENIENT);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals("small", d.read(in).getStr(T.MESSAGE));
+        assertEquals(big, d.read(in).getStr(T.MESSAGE));
+        assertEquals(Op.HEARTBEAT, d.read(in).opcode);
+        assertNull(d.read(in), "clean eof between frames");
+    }
+
+    @Test
+    void decoder_eofMidFrameIsAnError() {
+        byte[] bytes = Packets.chatSend("hello").toBytes();
+        PacketDecoder d = new PacketDecoder();
+        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 2));
+        assertThrows(EOFException.class, () -> d.read(in));
+    }
+
+    @Test
+    void limits_rejectBeforeAllocating() {
+        FrameLimits limits = FrameLimits.serverDefaults();
+        // header claims ~2 GB of chat, no payload follows
+        ByteBuffer hdr = ByteBuffer.allocate(Packet.HEADER_SIZE);
+        hdr.putInt(Packet.MAGIC).put((byte) 1).put(Op.CHAT_SEND).putShort((short) 0).putInt(Integer.MAX_VALUE).flip();
+        byte[] bytes = hdr.array();
+
+        FrameTooLargeException e = assertThrows(FrameTooLargeException.class,
+            () -> new PacketDecoder(64, limits).read(new ByteArrayInputStream(bytes)));
+        assertEquals(Op.CHAT_SEND, e.opcode);
+        assertEquals(limits.maxPayload(Op.CHAT_SEND), e.limit);
+
+        assertThrows(FrameTooLargeException.class, () -> new PacketView(limits).decode(ByteBuffer.wrap(bytes)));
+        assertThrows(FrameTooLargeException.class, () -> Packet.read(new ByteArrayInputStream(bytes), limits));
+    }
+
+    @Test
+    void limits_arePerOpcode() throws IOException {
+        FrameLimits limits = FrameLimits.serverDefaults();
+        String msg = "x".repeat(10_000);
+        byte[] chat = Packets.chatSend(msg).toBytes();
+        byte[] name = Packets.setUsername(msg).toBytes();
+
+        // a 10 KB chat is fine, a 10 KB username is not
+        assertEquals(msg, new PacketDecoder(64, limits).read(new ByteArrayInputStream(chat)).getStr(T.MESSAGE));
+        assertThrows(FrameTooLargeException.class,
+            () -> new PacketDecoder(64, limits).read(new ByteArrayInputStream(name)));
+    }
+
+    @Test
+    void read_lyingLengthIsEofNotHugeAllocation() {
+        // claims 16 MB but sends 10 bytes
+        ByteBuffer b = ByteBuffer.allocate(Packet.HEADER_SIZE + 10);
+        b.putInt(Packet.MAGIC).put((byte) 1).put(Op.GET_LOGS_ACK).putShort((short) 0).putInt(FrameLimits.ABSOLUTE_MAX);
+        assertThrows(EOFException.class, () -> Packet.read(new ByteArrayInputStream(b.array())));
+    }
+}
@@ -142,10 +142,50 @@ final class PacketsTest {
         assertEquals("777777", r.getStr(T.ROOM_CODE));
     }
 
+    @Test
+    void decode_handlesFramesSplitAcrossChunks() throws IOException {
+        byte[] a = Packets.chatBroadcast("alice", "hey there").toBytes();
+        byte[] b = Packets.heartbeatAck(42L).toBytes();
+        byte[] all = new byte[a.length + b.length];
+        System.arraycopy(a, 0, all, 0, a.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+
+        // feed one byte at a time like a really slow network
+        ByteBuffer buf = ByteBuffer.allocate(all.length);
+        java.util.List<Packet> out = new java.util.ArrayList<>();
+        PacketView v = new PacketView();
+        for (byte x : all) {
+            buf.put(x);
+            buf.flip();
+            while (v.decode(buf)) out.add(v.toPacket());
+            buf.compact();
+        }
+
+        assertEquals(2, out.size());
+        assertEquals(Op.CHAT_BROADCAST, out.get(0).opcode);
+        assertEquals("hey there", out.get(0).getStr(T.MESSAGE));
+        assertEquals(Op.HEARTBEAT_ACK, out.get(1).opcode);
+        assertEquals(42L, out.get(1).getU64(T.TIMESTAMPMS));
+        assertEquals(0, buf.position(), "nothing should be left over");
+    }
+
+    @Test
+    void decode_rejectsBadMagic() {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.HEADER_SIZE);
+        buf.putInt(0xDEADBEEF).put((byte) 1).put(Op.HEARTBEAT).putShort((short) 0).putInt(0).flip();
+        assertThrows(IOException.class, () -> new PacketView().decode(buf));
+    }
+
     // helpers
 
     private static Packet roundTrip(Packet p) throws IOException {
         byte[] bytes = p.toBytes();
         return Packet.read(new ByteArrayInputStream(bytes));
     }
+
+    @Test
+    void tlvValueOver64kIsRefused() {
+        // the length field is a u16, this used to wrap around and corrupt the frame
+        assertThrows(IllegalArgumentException.class, () -> new Packet().addStr(T.CHAT_LOGS, "x".repeat(70_000)));
+    }
 }